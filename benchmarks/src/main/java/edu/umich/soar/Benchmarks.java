@@ -0,0 +1,101 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.OutputStream;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.SoarException;
+
+/**
+ * <p>
+ * Shared setup for the benchmarks.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class Benchmarks
+{
+    /**
+     * Column layout of the default metrics.
+     */
+    static final ColumnLayout LAYOUT = new ColumnLayout(Metrics.defaults());
+    
+    /**
+     * Discards everything, so benchmarks measure the collector and not the
+     * disk.
+     */
+    static final OutputStream NULL_OUTPUT = new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    };
+    
+    private static final String[] COUNTER_AGENT = {
+        "sp {propose*init (state <s> ^superstate nil -^count) --> (<s> ^operator <o> +) (<o> ^name init)}",
+        "sp {apply*init (state <s> ^operator.name init) --> (<s> ^count 0)}",
+        "sp {propose*count (state <s> ^count <c>) --> (<s> ^operator <o> +) (<o> ^name count)}",
+        "sp {apply*count (state <s> ^operator.name count ^count <c>) --> (<s> ^count <c> -) (<s> ^count (+ <c> 1))}",
+    };
+    
+    private Benchmarks()
+    {
+    }
+    
+    /**
+     * Create an initialized agent that counts forever, one operator per
+     * decision cycle.
+     */
+    static Agent createCounterAgent(String name) throws SoarException
+    {
+        Agent agent = new Agent();
+        agent.setName(name);
+        agent.initialize();
+        for (String production : COUNTER_AGENT)
+        {
+            agent.getInterpreter().eval(production);
+        }
+        return agent;
+    }
+    
+    /**
+     * Fill a sample with plausible values for formatting benchmarks.
+     */
+    static Sample createSample()
+    {
+        Sample sample = new Sample(LAYOUT);
+        sample.agent = "soar";
+        for (int i = 0; i < LAYOUT.count; ++i)
+        {
+            sample.longs[i] = 1234567L * (i + 1);
+            sample.doubles[i] = 12.345678 * (i + 1);
+        }
+        return sample;
+    }
+}
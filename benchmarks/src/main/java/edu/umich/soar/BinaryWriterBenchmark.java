@@ -0,0 +1,84 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cost of writing rows to the memory mapped binary sink. Each iteration
+ * writes a fixed batch of rows to a fresh file so the files stay small,
+ * results are per batch.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, batchSize = BinaryWriterBenchmark.BATCH)
+@Measurement(iterations = 20, batchSize = BinaryWriterBenchmark.BATCH)
+@Fork(1)
+public class BinaryWriterBenchmark
+{
+    static final int BATCH = 100000;
+    
+    private Sample sample;
+    private File file;
+    private BinarySampleSink sink;
+    
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException
+    {
+        sample = Benchmarks.createSample();
+        file = File.createTempFile("datacollector", ".bin");
+        sink = new BinarySampleSink(file, Benchmarks.LAYOUT);
+    }
+    
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException
+    {
+        sink.close();
+        file.delete();
+    }
+    
+    @Benchmark
+    public void write() throws IOException
+    {
+        sink.write(sample);
+    }
+}
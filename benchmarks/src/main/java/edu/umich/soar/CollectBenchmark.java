@@ -0,0 +1,124 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cost of the per agent calls against a real in-process agent: collect, the
+ * per cycle onDecisionCycle hook, and a decision cycle with and without the
+ * hook for comparison.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollectBenchmark
+{
+    /**
+     * Queue capacity for asynchronous writing, 0 to write on the calling
+     * thread.
+     */
+    @Param({ "0", "1024" })
+    public int asyncCapacity;
+    
+    /**
+     * "all" for the default metrics, "three" for kernel msec, pf total and wm
+     * current only.
+     */
+    @Param({ "all", "three" })
+    public String columns;
+    
+    private Agent agent;
+    private DataCollector collector;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        agent = Benchmarks.createCounterAgent("soar");
+        agent.runFor(10, RunType.DECISIONS);
+        
+        collector = new DataCollector();
+        collector.setOutputStream(Benchmarks.NULL_OUTPUT);
+        if (columns.equals("three"))
+            collector.setMetrics(Arrays.asList(Metrics.KERNEL_MSEC, Metrics.PF_TOTAL, Metrics.WM_CURRENT));
+        if (asyncCapacity > 0)
+            collector.setAsynchronous(asyncCapacity, DataCollector.OverflowPolicy.DROP);
+        collector.onStart();
+        collector.collect(agent); // header and settings
+    }
+    
+    @TearDown
+    public void tearDown()
+    {
+        collector.dispose();
+    }
+    
+    @Benchmark
+    public void collect()
+    {
+        collector.collect(agent);
+    }
+    
+    @Benchmark
+    public void onDecisionCycle()
+    {
+        collector.onDecisionCycle(agent);
+    }
+    
+    @Benchmark
+    public void decisionCycle()
+    {
+        agent.runFor(1, RunType.DECISIONS);
+    }
+    
+    @Benchmark
+    public void decisionCycleWithHook()
+    {
+        agent.runFor(1, RunType.DECISIONS);
+        collector.onDecisionCycle(agent);
+        if (collector.onUpdateEvent())
+            collector.collect(agent);
+    }
+}
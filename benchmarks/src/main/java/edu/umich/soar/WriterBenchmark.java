@@ -0,0 +1,122 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Cost of turning a row into output, separate from reading the agent: the
+ * csv encoder alone, String.format as the old reference, and the csv sink
+ * written directly and through the asynchronous queue. See
+ * BinaryWriterBenchmark for the binary sink. Run with -prof gc to see the
+ * allocation per row.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark
+{
+    private static final String FORMAT;
+    
+    static
+    {
+        StringBuilder format = new StringBuilder("%s,");
+        for (int i = 0; i < Benchmarks.LAYOUT.count; ++i)
+        {
+            format.append(Benchmarks.LAYOUT.doubles[i] ? "%f," : "%d,");
+        }
+        FORMAT = format.toString();
+    }
+    
+    private Sample sample;
+    private final Object[] args = new Object[Benchmarks.LAYOUT.count + 1];
+    private CsvRowEncoder encoder;
+    private CsvSampleSink csvSink;
+    private AsyncSampleSink asyncSink;
+    
+    @Setup
+    public void setUp() throws IOException
+    {
+        sample = Benchmarks.createSample();
+        encoder = new CsvRowEncoder();
+        csvSink = new CsvSampleSink(Benchmarks.NULL_OUTPUT);
+        asyncSink = new AsyncSampleSink(new CsvSampleSink(Benchmarks.NULL_OUTPUT), Benchmarks.LAYOUT, 4096, DataCollector.OverflowPolicy.DROP);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        asyncSink.close();
+    }
+    
+    @Benchmark
+    public int encode()
+    {
+        return encoder.encode(sample).length();
+    }
+    
+    @Benchmark
+    public String stringFormat()
+    {
+        args[0] = sample.agent;
+        for (int i = 0; i < Benchmarks.LAYOUT.count; ++i)
+        {
+            if (Benchmarks.LAYOUT.doubles[i])
+                args[i + 1] = sample.doubles[i];
+            else
+                args[i + 1] = sample.longs[i];
+        }
+        return String.format(FORMAT, args);
+    }
+    
+    @Benchmark
+    public void csvSink() throws IOException
+    {
+        csvSink.write(sample);
+    }
+    
+    @Benchmark
+    public void asyncSink()
+    {
+        asyncSink.write(sample);
+    }
+}
@@ -0,0 +1,324 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.epmem.EpisodicMemory;
+import org.jsoar.kernel.epmem.EpisodicMemoryStatistics;
+import org.jsoar.kernel.smem.SemanticMemory;
+import org.jsoar.kernel.smem.SemanticMemoryStatistics;
+import org.jsoar.util.properties.PropertyManager;
+import org.jsoar.util.properties.PropertyProvider;
+
+/**
+ * <p>
+ * Per-agent state kept by DataCollector. One instance is kept for each agent
+ * the collector has seen, holding the agent's reusable sample and the
+ * samplers compiled for the current column layout. The samplers keep their
+ * own baselines so that deltas are always computed against the same agent's
+ * previous totals.
+ *
+ * <p>
+ * The state also tracks the worst decision cycles of the current period and a
+ * histogram of cycle durations, fed by DataCollector.onDecisionCycle.
+ * 
+ * <p>
+ * Instances are only touched from the thread calling collect for the agent.
+ *
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class AgentState
+{
+    final Agent agent;
+    ColumnLayout layout;        // set by compile()
+    Sample sample;              // set by compile()
+    Metric.Sampler[] samplers;  // set by compile(), indexed by column
+    SampleHistory history;      // null unless keeping rows in memory
+    
+    // Looked up once so the per cycle hook does not go through the property map
+    final PropertyProvider<Long> dcCount;
+    private final PropertyProvider<Long> pfCount;
+    private final PropertyProvider<Long> wmAddCount;
+    private final PropertyProvider<Long> wmRemCount;
+    
+    // Memory module adapters, null if the agent does not have the module
+    final SemanticMemory smem;
+    final SemanticMemoryStatistics smemStats;
+    final EpisodicMemory epmem;
+    final EpisodicMemoryStatistics epmemStats;
+    MemoryTimer memoryTimer;    // null unless memory timing is enabled
+    ProductionProfile profile;  // null unless profiling productions
+    PhaseTimer phaseTimer;      // null unless phase timing is enabled
+    FlightRecorder recorder;    // null unless recording slow cycles
+
+    boolean settingsWritten;    // reinitialized when the stream changes
+    long lastDc;                // reinitialized in reset()
+    volatile long threadId = -1; // agent thread, set by onDecisionCycle
+    
+    private int cycleEpoch;         // DataCollector start count at last cycle
+    private long lastCycleNanos;    // reinitialized in reset()
+    private long lastCyclePf;       // reinitialized in reset()
+    private long lastCycleChanges;  // reinitialized in reset()
+    AnomalyDetector detector;       // null unless collecting adaptively
+    
+    long maxTimeCycle;          // reinitialized in resetPeriod()
+    long maxTimeUsec;           // reinitialized in resetPeriod()
+    long maxChangesCycle;       // reinitialized in resetPeriod()
+    long maxChangesValue;       // reinitialized in resetPeriod()
+    long maxPfCycle;            // reinitialized in resetPeriod()
+    long maxPfValue;            // reinitialized in resetPeriod()
+    final CycleHistogram cycleTimes = new CycleHistogram(); // reset in resetPeriod()
+    
+    // working memory size over the period's cycles, Welford's running mean
+    long wmCycles;              // reinitialized in resetPeriod()
+    double wmMean;              // reinitialized in resetPeriod()
+    double wmSquares;           // sum of squared differences from the mean
+    long wmMin;                 // reinitialized in resetPeriod()
+    long wmMax;                 // reinitialized in resetPeriod()
+
+    AgentState(Agent agent)
+    {
+        this.agent = agent;
+        
+        final PropertyManager props = agent.getProperties();
+        this.dcCount = props.getProvider(SoarProperties.DECISION_PHASES_COUNT);
+        this.pfCount = props.getProvider(SoarProperties.PRODUCTION_FIRING_COUNT);
+        this.wmAddCount = props.getProvider(SoarProperties.WME_ADDITION_COUNT);
+        this.wmRemCount = props.getProvider(SoarProperties.WME_REMOVAL_COUNT);
+        
+        this.smem = (SemanticMemory) agent.getAdapter(SemanticMemory.class);
+        this.smemStats = smem != null ? smem.getStatistics() : null;
+        this.epmem = (EpisodicMemory) agent.getAdapter(EpisodicMemory.class);
+        this.epmemStats = epmem != null ? epmem.getStatistics() : null;
+        
+        reset();
+    }
+    
+    /**
+     * <p>
+     * Create a sampler for each metric of the layout and a sample to hold the
+     * values. Done once per layout so collect only walks the array.
+     */
+    void compile(ColumnLayout layout)
+    {
+        Metric.Sampler[] samplers = new Metric.Sampler[layout.count];
+        for (int i = ColumnLayout.FIRST_METRIC; i < layout.count; ++i)
+        {
+            samplers[i] = layout.metrics[i].createSampler(this);
+        }
+        this.samplers = samplers;
+        this.sample = new Sample(layout);
+        this.layout = layout;
+    }
+    
+    /**
+     * <p>
+     * Start or stop timing the agent's memory modules, see MemoryTimer.
+     * 
+     * @param enabled
+     *            Whether the timing listeners should be installed.
+     */
+    void setMemoryTiming(boolean enabled)
+    {
+        if (enabled && memoryTimer == null)
+        {
+            memoryTimer = new MemoryTimer(agent, dcCount, epmemStats, smemStats);
+            memoryTimer.install();
+        }
+        else if (!enabled && memoryTimer != null)
+        {
+            memoryTimer.uninstall();
+            memoryTimer = null;
+        }
+    }
+    
+    /**
+     * <p>
+     * Start or stop profiling the agent's productions, see ProductionProfile.
+     * 
+     * @param topN
+     *            Number of productions to keep per period, or 0 to stop.
+     */
+    void setProductionProfile(int topN)
+    {
+        if (profile != null && profile.topN != topN)
+        {
+            profile.uninstall();
+            profile = null;
+        }
+        if (topN > 0 && profile == null)
+        {
+            profile = new ProductionProfile(agent, topN);
+            profile.install();
+        }
+    }
+    
+    /**
+     * <p>
+     * Start or stop timing the agent's phases, see PhaseTimer.
+     * 
+     * @param enabled
+     *            Whether the timing listeners should be installed.
+     */
+    void setPhaseTiming(boolean enabled)
+    {
+        if (enabled && phaseTimer == null)
+        {
+            phaseTimer = new PhaseTimer(agent);
+            phaseTimer.install();
+        }
+        else if (!enabled && phaseTimer != null)
+        {
+            phaseTimer.uninstall();
+            phaseTimer = null;
+        }
+    }
+    
+    /**
+     * <p>
+     * Called after every decision cycle. Measures the cycle's wall time since
+     * the previous call and its production firings and wme changes from the
+     * agent's counters, keeping the largest of each for the current period.
+     * Remembers the agent's thread for the JVM thread metrics.
+     * Adds the working memory size to the period's running statistics and
+     * hands the cycle to the flight recorder if there is one.
+     * Checks the cycle with the anomaly detector if there is one.
+     * 
+     * @param epoch
+     *            Changes each time the run is started, the time between the
+     *            last cycle of one run and the first of the next is not
+     *            counted.
+     * @return true if the detector flagged the cycle.
+     */
+    boolean onDecisionCycle(int epoch)
+    {
+        final long thread = Thread.currentThread().getId();
+        if (thread != threadId)
+            threadId = thread;
+        
+        final long now = System.nanoTime();
+        final long dc = dcCount.get();
+        final long pf = pfCount.get();
+        final long changes = wmAddCount.get() + wmRemCount.get();
+        final long wm = agent.getNumWmesInRete();
+        
+        boolean unusual = false;
+        if (lastCycleNanos != 0)
+        {
+            long usec = -1;
+            if (epoch == cycleEpoch)
+            {
+                long nanos = now - lastCycleNanos;
+                cycleTimes.record(nanos);
+                usec = nanos / 1000;
+                if (usec > maxTimeUsec)
+                {
+                    maxTimeUsec = usec;
+                    maxTimeCycle = dc;
+                }
+            }
+            
+            long cyclePf = pf - lastCyclePf;
+            if (cyclePf > maxPfValue)
+            {
+                maxPfValue = cyclePf;
+                maxPfCycle = dc;
+            }
+            
+            long cycleChanges = changes - lastCycleChanges;
+            if (cycleChanges > maxChangesValue)
+            {
+                maxChangesValue = cycleChanges;
+                maxChangesCycle = dc;
+            }
+            
+            if (detector != null)
+                unusual = detector.check(usec, cycleChanges, cyclePf);
+            if (recorder != null)
+                recorder.onCycle(dc, usec, cycleChanges, cyclePf, wm, now);
+        }
+        
+        if (wmCycles == 0 || wm < wmMin)
+            wmMin = wm;
+        if (wm > wmMax)
+            wmMax = wm;
+        final double delta = wm - wmMean;
+        wmMean += delta / ++wmCycles;
+        wmSquares += delta * (wm - wmMean);
+        
+        cycleEpoch = epoch;
+        lastCycleNanos = now;
+        lastCyclePf = pf;
+        lastCycleChanges = changes;
+        return unusual;
+    }
+    
+    /**
+     * Clear values that cover a single collection period.
+     */
+    void resetPeriod()
+    {
+        maxTimeCycle = 0;
+        maxTimeUsec = 0;
+        maxChangesCycle = 0;
+        maxChangesValue = 0;
+        maxPfCycle = 0;
+        maxPfValue = 0;
+        cycleTimes.reset();
+        wmCycles = 0;
+        wmMean = 0;
+        wmSquares = 0;
+        wmMin = 0;
+        wmMax = 0;
+        if (memoryTimer != null)
+            memoryTimer.resetPeriod();
+        if (phaseTimer != null)
+            phaseTimer.resetPeriod();
+    }
+
+    void reset()
+    {
+        if (samplers != null)
+        {
+            for (int i = ColumnLayout.FIRST_METRIC; i < samplers.length; ++i)
+            {
+                samplers[i].reset();
+            }
+        }
+        lastDc = 0;
+        lastCycleNanos = 0;
+        lastCyclePf = 0;
+        lastCycleChanges = 0;
+        if (detector != null)
+            detector.reset();
+        if (memoryTimer != null)
+            memoryTimer.reset();
+        if (profile != null)
+            profile.reset();
+        if (phaseTimer != null)
+            phaseTimer.reset();
+        if (recorder != null)
+            recorder.reset();
+        resetPeriod();
+    }
+}
@@ -0,0 +1,133 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * <p>
+ * Flags decision cycles that look unusual for one agent, for the adaptive
+ * collection mode. Each cycle's wall time, wme changes and production firings
+ * are compared against fixed thresholds and against an exponentially weighted
+ * moving mean and variance of the agent's recent cycles. A signal has to be
+ * well above its mean in relative terms too, so small changes in a signal
+ * that hardly varies are not flagged.
+ * 
+ * <p>
+ * Instances are only touched from the thread calling onDecisionCycle for the
+ * agent.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class AnomalyDetector
+{
+    // Weight of the newest cycle in the moving baseline, about the last 64
+    // cycles
+    private static final double ALPHA = 1.0 / 64;
+    // Cycles to see before the baseline is trusted
+    private static final int WARMUP = 64;
+    // Also needs to be this fraction above the mean, so that a signal that
+    // hardly varies does not trip on every small change
+    private static final double MIN_INCREASE = 0.5;
+    
+    private static final int TIME = 0;
+    private static final int CHANGES = 1;
+    private static final int FIRINGS = 2;
+    
+    private final long[] thresholds;
+    private final double sigmas;
+    
+    private final double[] mean = new double[3];
+    private final double[] variance = new double[3];
+    private final int[] samples = new int[3];
+    
+    /**
+     * @param thresholds
+     *            Cycle time in microseconds, wme changes and production
+     *            firings at or above which a cycle is unusual, 0 to not use a
+     *            fixed threshold for that signal.
+     * @param sigmas
+     *            A cycle is unusual if a signal is this many standard
+     *            deviations above its moving mean, 0 to not use the baseline.
+     */
+    AnomalyDetector(long[] thresholds, double sigmas)
+    {
+        this.thresholds = thresholds;
+        this.sigmas = sigmas;
+    }
+    
+    /**
+     * @param usec
+     *            Cycle wall time, or a negative number if it was not measured.
+     * @param changes
+     *            Wme additions and removals during the cycle.
+     * @param firings
+     *            Production firings during the cycle.
+     * @return true if any signal is unusual.
+     */
+    boolean check(long usec, long changes, long firings)
+    {
+        boolean unusual = false;
+        if (usec >= 0)
+            unusual |= check(TIME, usec);
+        unusual |= check(CHANGES, changes);
+        unusual |= check(FIRINGS, firings);
+        return unusual;
+    }
+    
+    private boolean check(int signal, long value)
+    {
+        boolean unusual = thresholds[signal] > 0 && value >= thresholds[signal];
+        
+        final double m = mean[signal];
+        if (sigmas > 0 && samples[signal] >= WARMUP)
+        {
+            double deviation = value - m;
+            unusual |= deviation > m * MIN_INCREASE && deviation * deviation > sigmas * sigmas * variance[signal];
+        }
+        
+        if (samples[signal] == 0)
+        {
+            mean[signal] = value;
+        }
+        else
+        {
+            // incremental exponentially weighted mean and variance
+            double diff = value - m;
+            double increment = ALPHA * diff;
+            mean[signal] = m + increment;
+            variance[signal] = (1 - ALPHA) * (variance[signal] + diff * increment);
+        }
+        if (samples[signal] < WARMUP)
+            ++samples[signal];
+        return unusual;
+    }
+    
+    void reset()
+    {
+        for (int i = 0; i < samples.length; ++i)
+        {
+            mean[i] = 0;
+            variance[i] = 0;
+            samples[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Hands rows to a background thread that writes them to another sink. The
+ * calling thread only copies the row into a preallocated ring of samples, all
+ * formatting and I/O happens on the writer thread.
+ * 
+ * <p>
+ * When the ring is full the row is either dropped and counted or the caller
+ * waits for the writer to catch up, depending on the overflow policy.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class AsyncSampleSink implements SampleSink
+{
+    private static final Log logger = LogFactory.getLog(AsyncSampleSink.class);
+    
+    private final SampleSink delegate;
+    private final DataCollector.OverflowPolicy policy;
+    private final Sample[] ring;
+    private final Thread thread;
+    private final Object lock = new Object();
+    
+    // guarded by lock
+    private long head;              // next slot to fill
+    private long tail;              // next slot to write
+    private boolean writerWaiting;
+    private int producersWaiting;
+    private boolean flushRequested;
+    private boolean closed;
+    
+    private volatile long dropped;
+    
+    AsyncSampleSink(SampleSink delegate, ColumnLayout layout, int capacity, DataCollector.OverflowPolicy policy)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        
+        this.delegate = delegate;
+        this.policy = policy;
+        this.ring = new Sample[capacity];
+        for (int i = 0; i < capacity; ++i)
+        {
+            ring[i] = new Sample(layout);
+        }
+        
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "DataCollector writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * @return Number of rows dropped because the ring was full.
+     */
+    long getDropped()
+    {
+        return dropped;
+    }
+    
+    @Override
+    public void write(Sample sample)
+    {
+        synchronized (lock)
+        {
+            while (head - tail == ring.length && !closed)
+            {
+                if (policy == DataCollector.OverflowPolicy.DROP)
+                {
+                    ++dropped;
+                    return;
+                }
+                
+                ++producersWaiting;
+                try
+                {
+                    lock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    ++dropped;
+                    return;
+                }
+                finally
+                {
+                    --producersWaiting;
+                }
+            }
+            if (closed)
+                return;
+            
+            ring[(int) (head % ring.length)].copyFrom(sample);
+            ++head;
+            if (writerWaiting)
+                lock.notifyAll();
+        }
+    }
+    
+    /**
+     * <p>
+     * Does not wait: asks the writer thread to flush the delegate once it has
+     * written everything queued so far.
+     */
+    @Override
+    public void flush()
+    {
+        synchronized (lock)
+        {
+            flushRequested = true;
+            if (writerWaiting)
+                lock.notifyAll();
+        }
+    }
+    
+    /**
+     * <p>
+     * Waits for the writer thread to write everything queued, then flushes the
+     * delegate and stops the thread. The delegate is left open, it belongs to
+     * the caller.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock)
+        {
+            if (closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+        }
+        
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        delegate.flush();
+    }
+    
+    private void writeLoop()
+    {
+        while (true)
+        {
+            Sample sample;
+            boolean flush;
+            synchronized (lock)
+            {
+                while (head == tail && !flushRequested && !closed)
+                {
+                    writerWaiting = true;
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // only closing stops the writer
+                    }
+                    finally
+                    {
+                        writerWaiting = false;
+                    }
+                }
+                if (head == tail && closed)
+                    return;
+                
+                sample = head == tail ? null : ring[(int) (tail % ring.length)];
+                flush = sample == null && flushRequested;
+                if (flush)
+                    flushRequested = false;
+            }
+            
+            // the slot is not reused until tail moves past it
+            try
+            {
+                if (sample != null)
+                    delegate.write(sample);
+                else if (flush)
+                    delegate.flush();
+            }
+            catch (Throwable e)
+            {
+                logger.error("Error writing data", e);
+            }
+            
+            if (sample != null)
+            {
+                synchronized (lock)
+                {
+                    ++tail;
+                    if (producersWaiting > 0)
+                        lock.notifyAll();
+                }
+            }
+        }
+    }
+}
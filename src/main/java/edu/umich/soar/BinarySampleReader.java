@@ -0,0 +1,249 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Reads files written by BinarySampleSink one row at a time. The sparse
+ * index in the footer is used to start reading near a given decision cycle or
+ * wall clock time without scanning the rows before it.
+ * 
+ * <p>
+ * Files from a run that did not close the collector have no footer. Their rows
+ * can still be read up to the last flush, but agent names are not known and
+ * are reported by id.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class BinarySampleReader
+{
+    private static final int BATCH_ROWS = 1024;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long rowCount;
+    private final int dataOffset;
+    private final int recordSize;
+    private final String[] columnNames;
+    private final boolean[] doubleColumns;
+    
+    private String[] agents = new String[0];
+    private String[] settings = new String[0];
+    private long[] settingsRows = new long[0];
+    private long[] indexRows = new long[0];
+    private long[] indexDcs = new long[0];
+    private double[] indexWallClocks = new double[0];
+    
+    private final ByteBuffer batch;
+    private long row;       // next row to read
+    private int agent;
+    private final long[] values;
+    private String currentSettings;
+    
+    BinarySampleReader(File path) throws IOException
+    {
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        
+        if (file.readInt() != BinarySampleSink.MAGIC)
+            throw new IOException(path + " is not a data collector file");
+        int version = file.readInt();
+        if (version != BinarySampleSink.VERSION)
+            throw new IOException(path + " has unsupported version " + version);
+        this.rowCount = file.readLong();
+        long footerOffset = file.readLong();
+        this.dataOffset = file.readInt();
+        this.recordSize = file.readInt();
+        int columns = file.readInt();
+        this.columnNames = new String[columns];
+        this.doubleColumns = new boolean[columns];
+        for (int i = 0; i < columns; ++i)
+        {
+            doubleColumns[i] = file.readByte() == BinarySampleSink.TYPE_DOUBLE;
+            columnNames[i] = file.readUTF();
+        }
+        this.values = new long[columns];
+        this.batch = ByteBuffer.allocate(recordSize * BATCH_ROWS);
+        this.batch.limit(0);
+        
+        if (footerOffset != 0)
+            readFooter(footerOffset);
+    }
+    
+    private void readFooter(long footerOffset) throws IOException
+    {
+        channel.position(footerOffset);
+        DataInputStream din = new DataInputStream(Channels.newInputStream(channel));
+        int agentCount = din.readInt();
+        agents = new String[agentCount];
+        settings = new String[agentCount];
+        settingsRows = new long[agentCount];
+        for (int i = 0; i < agentCount; ++i)
+        {
+            int id = din.readInt();
+            agents[id] = din.readUTF();
+            settingsRows[id] = din.readLong();
+            settings[id] = din.readUTF();
+        }
+        din.readInt(); // index interval
+        int indexCount = din.readInt();
+        indexRows = new long[indexCount];
+        indexDcs = new long[indexCount];
+        indexWallClocks = new double[indexCount];
+        for (int i = 0; i < indexCount; ++i)
+        {
+            indexRows[i] = din.readLong();
+            indexDcs[i] = din.readLong();
+            indexWallClocks[i] = din.readDouble();
+        }
+    }
+    
+    int getColumnCount()
+    {
+        return columnNames.length;
+    }
+    
+    String getColumnName(int column)
+    {
+        return columnNames[column];
+    }
+    
+    boolean isDoubleColumn(int column)
+    {
+        return doubleColumns[column];
+    }
+    
+    long getRowCount()
+    {
+        return rowCount;
+    }
+    
+    void seekRow(long row)
+    {
+        this.row = Math.max(0, Math.min(row, rowCount));
+        batch.limit(0);
+    }
+    
+    /**
+     * Position the reader at or before the first row with a decision cycle
+     * number of at least dc. Rows before the returned row all have smaller
+     * decision cycle numbers.
+     * 
+     * @return The row the reader is positioned at.
+     */
+    long seekDc(long dc)
+    {
+        long start = 0;
+        for (int i = 0; i < indexDcs.length && indexDcs[i] < dc; ++i)
+        {
+            start = indexRows[i];
+        }
+        seekRow(start);
+        return start;
+    }
+    
+    /**
+     * Like seekDc but for the wall clock column, in seconds.
+     */
+    long seekWallClock(double seconds)
+    {
+        long start = 0;
+        for (int i = 0; i < indexWallClocks.length && indexWallClocks[i] < seconds; ++i)
+        {
+            start = indexRows[i];
+        }
+        seekRow(start);
+        return start;
+    }
+    
+    /**
+     * Read the next row.
+     * 
+     * @return false if there are no more rows.
+     */
+    boolean next() throws IOException
+    {
+        if (row >= rowCount)
+            return false;
+        
+        if (!batch.hasRemaining())
+        {
+            int rows = (int) Math.min(BATCH_ROWS, rowCount - row);
+            batch.clear();
+            batch.limit(rows * recordSize);
+            long position = dataOffset + row * recordSize;
+            while (batch.hasRemaining())
+            {
+                if (channel.read(batch, position + batch.position()) < 0)
+                    throw new IOException("Unexpected end of file at row " + row);
+            }
+            batch.flip();
+        }
+        
+        agent = batch.getInt();
+        for (int i = 0; i < values.length; ++i)
+        {
+            values[i] = batch.getLong();
+        }
+        currentSettings = agent < settingsRows.length && settingsRows[agent] == row ? settings[agent] : null;
+        ++row;
+        return true;
+    }
+    
+    String getAgent()
+    {
+        return agent < agents.length ? agents[agent] : "agent-" + agent;
+    }
+    
+    /**
+     * @return The agent's settings string if the current row is the first
+     *         row written for the agent, otherwise null.
+     */
+    String getSettings()
+    {
+        return currentSettings;
+    }
+    
+    long getLong(int column)
+    {
+        return values[column];
+    }
+    
+    double getDouble(int column)
+    {
+        return Double.longBitsToDouble(values[column]);
+    }
+    
+    void close() throws IOException
+    {
+        file.close();
+    }
+}
@@ -0,0 +1,303 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Writes rows to a compact binary file instead of text. The file is written
+ * through a memory mapped region of the file that is extended in fixed size
+ * chunks, so writing a row is a handful of puts into mapped memory.
+ * 
+ * <p>
+ * File layout, all values big endian:
+ * <ul>
+ * <li>Header: magic "JSDC", int version, long row count, long footer offset,
+ * int data offset, int record size, int column count, then for each column a
+ * type byte (0 long, 1 double) and its name written with writeUTF.
+ * <li>Rows starting at the data offset: an int agent id followed by one 8
+ * byte value per column, either a long or the raw bits of a double.
+ * <li>Footer: the agent dictionary (int count, then int id, name, long row of
+ * the agent's settings or -1, settings), then the sparse index (int interval,
+ * int count, then long row, long max dc num and double max wall clock of all
+ * rows before that row).
+ * </ul>
+ * 
+ * <p>
+ * The row count in the header is updated on flush and close, the footer is
+ * only written on close. BinarySampleReader reads these files.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class BinarySampleSink implements SampleSink
+{
+    static final int MAGIC = 0x4a534443; // "JSDC"
+    static final int VERSION = 1;
+    static final int ROW_COUNT_OFFSET = 8;
+    static final int FOOTER_OFFSET_OFFSET = 16;
+    static final int INDEX_INTERVAL = 1024;
+    static final int TYPE_LONG = 0;
+    static final int TYPE_DOUBLE = 1;
+    
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    
+    private final ColumnLayout layout;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int dataOffset;
+    private final int recordSize;
+    private final int chunkSize;
+    
+    private MappedByteBuffer chunk;
+    private long chunkStart;
+    private long rows;
+    
+    private String[] agents = new String[4];
+    private String[] settings = new String[4];
+    private long[] settingsRows = new long[4];
+    private int agentCount;
+    private int lastAgent;
+    
+    private long[] indexRows = new long[64];
+    private long[] indexDcs = new long[64];
+    private double[] indexWallClocks = new double[64];
+    private int indexCount;
+    private long maxDc;
+    private double maxWallClock;
+    
+    BinarySampleSink(File path, ColumnLayout layout) throws IOException
+    {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.layout = layout;
+        this.recordSize = 4 + 8 * layout.count;
+        // whole records per chunk so a record never straddles two mappings
+        this.chunkSize = (CHUNK_SIZE / recordSize) * recordSize;
+        
+        file.setLength(0);
+        byte[] header = header(layout);
+        this.dataOffset = header.length;
+        ByteBuffer hb = ByteBuffer.wrap(header);
+        hb.putInt(24, dataOffset);
+        channel.write(hb, 0);
+        
+        this.chunkStart = dataOffset;
+        this.chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, chunkSize);
+    }
+    
+    private static byte[] header(ColumnLayout layout) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bytes);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeLong(0); // row count
+        dout.writeLong(0); // footer offset
+        dout.writeInt(0);  // data offset, filled in by caller
+        dout.writeInt(4 + 8 * layout.count);
+        dout.writeInt(layout.count);
+        for (int i = 0; i < layout.count; ++i)
+        {
+            dout.writeByte(layout.doubles[i] ? TYPE_DOUBLE : TYPE_LONG);
+            dout.writeUTF(layout.names[i]);
+        }
+        dout.flush();
+        return bytes.toByteArray();
+    }
+    
+    @Override
+    public void write(Sample sample) throws IOException
+    {
+        int agent = agentId(sample.agent);
+        if (sample.settings != null && settingsRows[agent] < 0)
+        {
+            settings[agent] = sample.settings;
+            settingsRows[agent] = rows;
+        }
+        
+        if (rows % INDEX_INTERVAL == 0)
+            addIndexEntry();
+        
+        if (!chunk.hasRemaining())
+        {
+            chunkStart += chunkSize;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart, chunkSize);
+        }
+        
+        final MappedByteBuffer chunk = this.chunk;
+        chunk.putInt(agent);
+        final boolean[] doubles = layout.doubles;
+        final boolean[] sampleDoubles = sample.layout.doubles;
+        for (int i = 0; i < doubles.length; ++i)
+        {
+            if (doubles[i] == sampleDoubles[i])
+            {
+                if (doubles[i])
+                    chunk.putDouble(sample.doubles[i]);
+                else
+                    chunk.putLong(sample.longs[i]);
+            }
+            else
+            {
+                // aggregate rows hold doubles for every column
+                chunk.putLong(Math.round(sample.doubles[i]));
+            }
+        }
+        ++rows;
+        
+        long dc = sample.longs[ColumnLayout.DC_NUM];
+        if (dc > maxDc)
+            maxDc = dc;
+        double wallClock = sample.doubles[ColumnLayout.WALL_CLOCK];
+        if (wallClock > maxWallClock)
+            maxWallClock = wallClock;
+    }
+    
+    @Override
+    public void flush() throws IOException
+    {
+        chunk.force();
+        writeLong(ROW_COUNT_OFFSET, rows);
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            chunk.force();
+            chunk = null;
+            
+            long footerOffset = dataOffset + rows * recordSize;
+            channel.truncate(footerOffset);
+            channel.write(ByteBuffer.wrap(footer()), footerOffset);
+            writeLong(ROW_COUNT_OFFSET, rows);
+            writeLong(FOOTER_OFFSET_OFFSET, footerOffset);
+            channel.force(true);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+    
+    private byte[] footer() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bytes);
+        dout.writeInt(agentCount);
+        for (int i = 0; i < agentCount; ++i)
+        {
+            dout.writeInt(i);
+            dout.writeUTF(agents[i]);
+            dout.writeLong(settingsRows[i]);
+            dout.writeUTF(settings[i] != null ? settings[i] : "");
+        }
+        dout.writeInt(INDEX_INTERVAL);
+        dout.writeInt(indexCount);
+        for (int i = 0; i < indexCount; ++i)
+        {
+            dout.writeLong(indexRows[i]);
+            dout.writeLong(indexDcs[i]);
+            dout.writeDouble(indexWallClocks[i]);
+        }
+        dout.flush();
+        return bytes.toByteArray();
+    }
+    
+    private void writeLong(long position, long value) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(0, value);
+        channel.write(buf, position);
+    }
+    
+    private void addIndexEntry()
+    {
+        if (indexCount == indexRows.length)
+        {
+            int size = indexCount * 2;
+            long[] rows = new long[size];
+            long[] dcs = new long[size];
+            double[] wallClocks = new double[size];
+            System.arraycopy(indexRows, 0, rows, 0, indexCount);
+            System.arraycopy(indexDcs, 0, dcs, 0, indexCount);
+            System.arraycopy(indexWallClocks, 0, wallClocks, 0, indexCount);
+            indexRows = rows;
+            indexDcs = dcs;
+            indexWallClocks = wallClocks;
+        }
+        indexRows[indexCount] = rows;
+        indexDcs[indexCount] = maxDc;
+        indexWallClocks[indexCount] = maxWallClock;
+        ++indexCount;
+    }
+    
+    private int agentId(String name)
+    {
+        // agent names are usually the same String instances every row
+        for (int i = 0; i < agentCount; ++i)
+        {
+            int id = (lastAgent + i) % agentCount;
+            if (agents[id] == name)
+            {
+                lastAgent = id;
+                return id;
+            }
+        }
+        for (int i = 0; i < agentCount; ++i)
+        {
+            if (agents[i].equals(name))
+            {
+                lastAgent = i;
+                return i;
+            }
+        }
+        
+        if (agentCount == agents.length)
+        {
+            int size = agentCount * 2;
+            String[] grownAgents = new String[size];
+            String[] grownSettings = new String[size];
+            long[] grownRows = new long[size];
+            System.arraycopy(agents, 0, grownAgents, 0, agentCount);
+            System.arraycopy(settings, 0, grownSettings, 0, agentCount);
+            System.arraycopy(settingsRows, 0, grownRows, 0, agentCount);
+            agents = grownAgents;
+            settings = grownSettings;
+            settingsRows = grownRows;
+        }
+        agents[agentCount] = name;
+        settingsRows[agentCount] = -1;
+        lastAgent = agentCount;
+        return agentCount++;
+    }
+}
@@ -0,0 +1,284 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.kernel.events.AfterDecisionCycleEvent;
+import org.jsoar.runtime.ThreadedAgent;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.properties.PropertyChangeEvent;
+import org.jsoar.util.properties.PropertyListener;
+import org.jsoar.util.properties.PropertyProvider;
+
+/**
+ * <p>
+ * Wires a DataCollector to a set of ThreadedAgents, replacing the listeners
+ * and collect loop of DataCollectorExample. Each attached agent gets an after
+ * decision cycle listener and a running property listener, and is collected
+ * on its own thread whenever its decision cycle count reaches a multiple of
+ * the period. Agents running at different speeds are therefore all sampled
+ * at the same decision cycle numbers, so their rows line up.
+ * 
+ * <p>
+ * The collector's clock runs while any attached agent is running. When an
+ * agent stops, one more row is collected for it at the cycle it stopped on.
+ * Agents can be attached and detached at any time, running or not; a
+ * detached agent gets a last row and is removed from the collector.
+ * 
+ * <p>
+ * The per cycle cost is one counter read and a comparison, plus
+ * DataCollector.onDecisionCycle unless cycle statistics are turned off with
+ * setCycleStatistics. Calls into the collector from different agent threads
+ * are serialized by the service, except the per cycle call, which only
+ * touches the agent's own state. The collection mode set on the collector
+ * (setPeriodCycles and the others) is not used.
+ * 
+ * <pre>
+ * DataCollector dc = new DataCollector();
+ * dc.setOutputStream(out);
+ * CollectorService service = new CollectorService(dc, 5000);
+ * service.attach(threaded1);
+ * service.attach(threaded2);
+ * </pre>
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class CollectorService
+{
+    private final DataCollector collector;
+    private final long periodCycles;
+    private final ConcurrentMap<ThreadedAgent, Attachment> attachments = new ConcurrentHashMap<ThreadedAgent, Attachment>();
+    private final Object lock = new Object();
+    private int runningCount;       // guarded by lock
+    private volatile boolean cycleStatistics = true;
+    
+    /**
+     * @param collector
+     *            The collector to feed, with its output already set.
+     * @param periodCycles
+     *            Collect each agent every time its decision cycle count
+     *            reaches a multiple of this.
+     */
+    public CollectorService(DataCollector collector, int periodCycles)
+    {
+        if (periodCycles < 1)
+            throw new IllegalArgumentException("periodCycles must be positive: " + periodCycles);
+        this.collector = collector;
+        this.periodCycles = periodCycles;
+    }
+    
+    /**
+     * <p>
+     * Whether to call DataCollector.onDecisionCycle every cycle. It fills in
+     * the max dc, dc msec and wm statistics columns and the adaptive triggers.
+     * On by default.
+     */
+    public void setCycleStatistics(boolean enabled)
+    {
+        this.cycleStatistics = enabled;
+    }
+    
+    /**
+     * <p>
+     * Start collecting an agent. The listeners are installed on the agent's
+     * thread. If it is running, the first row is collected at the next
+     * multiple of the period.
+     * 
+     * @param threaded
+     *            The agent, ignored if it is already attached.
+     */
+    public void attach(ThreadedAgent threaded)
+    {
+        final Attachment attachment = new Attachment(threaded);
+        if (attachments.putIfAbsent(threaded, attachment) != null)
+            return;
+        // queued behind any detach still pending for this agent, so the
+        // state looked up here is not the one that detach removes
+        threaded.execute(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                synchronized (lock)
+                {
+                    attachment.state = collector.getAgentState(attachment.agent);
+                }
+                attachment.install();
+                return null;
+            }
+        }, null);
+    }
+    
+    /**
+     * <p>
+     * Stop collecting an agent. The listeners are removed and the last row is
+     * collected on the agent's thread.
+     * 
+     * @param threaded
+     *            The agent, ignored if it is not attached.
+     */
+    public void detach(ThreadedAgent threaded)
+    {
+        final Attachment attachment = attachments.remove(threaded);
+        if (attachment == null)
+            return;
+        threaded.execute(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                attachment.uninstall();
+                attachment.stopped(true);
+                synchronized (lock)
+                {
+                    collector.removeAgent(attachment.agent);
+                }
+                return null;
+            }
+        }, null);
+    }
+    
+    /**
+     * <p>
+     * Detach every agent.
+     */
+    public void dispose()
+    {
+        for (ThreadedAgent threaded : attachments.keySet())
+        {
+            detach(threaded);
+        }
+    }
+    
+    private void collect(Agent agent)
+    {
+        synchronized (lock)
+        {
+            collector.collect(agent);
+        }
+    }
+    
+    /**
+     * Hooks installed on one agent. Events arrive on the agent's thread.
+     */
+    private final class Attachment implements SoarEventListener, PropertyListener<Boolean>
+    {
+        final ThreadedAgent threaded;
+        final Agent agent;
+        private final PropertyProvider<Long> dcCount;
+        AgentState state;           // set on the agent thread before install()
+        private long nextDc;        // agent thread only
+        private boolean running;    // guarded by lock
+        
+        Attachment(ThreadedAgent threaded)
+        {
+            this.threaded = threaded;
+            this.agent = threaded.getAgent();
+            this.dcCount = agent.getProperties().getProvider(SoarProperties.DECISION_PHASES_COUNT);
+        }
+        
+        void install()
+        {
+            agent.getEvents().addListener(AfterDecisionCycleEvent.class, this);
+            agent.getProperties().addListener(SoarProperties.IS_RUNNING, this);
+            if (Boolean.TRUE.equals(agent.getProperties().get(SoarProperties.IS_RUNNING)))
+                started();
+        }
+        
+        void uninstall()
+        {
+            agent.getEvents().removeListener(AfterDecisionCycleEvent.class, this);
+            agent.getProperties().removeListener(SoarProperties.IS_RUNNING, this);
+        }
+        
+        @Override
+        public void onEvent(SoarEvent event)
+        {
+            if (cycleStatistics)
+                collector.onDecisionCycle(state);
+            
+            final long dc = dcCount.get();
+            if (dc < nextDc - periodCycles)
+            {
+                // the count went back (init-soar), start over from here
+                nextDc = (dc / periodCycles + 1) * periodCycles;
+                return;
+            }
+            if (dc < nextDc)
+                return;
+            // the first cycle seen only sets the next sampling point
+            if (nextDc != 0)
+                collect(agent);
+            nextDc = (dc / periodCycles + 1) * periodCycles;
+        }
+        
+        @Override
+        public void propertyChanged(PropertyChangeEvent<Boolean> event)
+        {
+            if (event.getNewValue())
+                started();
+            else
+                stopped(false);
+        }
+        
+        private void started()
+        {
+            synchronized (lock)
+            {
+                if (running)
+                    return;
+                running = true;
+                if (runningCount++ == 0)
+                    collector.onStart();
+            }
+        }
+        
+        /**
+         * Collect the last row at the current cycle and stop the clock if
+         * this was the last running agent.
+         */
+        void stopped(boolean detaching)
+        {
+            synchronized (lock)
+            {
+                if (running)
+                {
+                    running = false;
+                    if (--runningCount == 0)
+                        collector.onStop();
+                }
+                else if (!detaching)
+                {
+                    return;
+                }
+                collector.collect(agent);
+            }
+        }
+    }
+}
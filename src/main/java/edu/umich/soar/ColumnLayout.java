@@ -0,0 +1,120 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * The columns of a data file, compiled from the enabled metrics when the
+ * collector opens its output. The agent and settings columns are not included,
+ * they are written around the values. Wall clock and dc num are always the
+ * first two value columns so that sinks can index rows by them.
+ * 
+ * <p>
+ * Immutable and shared by the collector, its sinks and every Sample.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class ColumnLayout
+{
+    static final int WALL_CLOCK = 0;
+    static final int DC_NUM = 1;
+    static final int FIRST_METRIC = 2;
+    
+    final int count;
+    final String[] names;
+    final boolean[] doubles;
+    final Metric[] metrics;     // null for the fixed columns
+    final String header;
+    
+    ColumnLayout(List<Metric> enabled)
+    {
+        this.count = FIRST_METRIC + enabled.size();
+        this.names = new String[count];
+        this.doubles = new boolean[count];
+        this.metrics = new Metric[count];
+        
+        names[WALL_CLOCK] = "wall clock";
+        doubles[WALL_CLOCK] = true;
+        names[DC_NUM] = "dc num";
+        
+        Set<String> seen = new HashSet<String>();
+        seen.add(names[WALL_CLOCK]);
+        seen.add(names[DC_NUM]);
+        for (int i = FIRST_METRIC; i < count; ++i)
+        {
+            Metric metric = enabled.get(i - FIRST_METRIC);
+            if (!seen.add(metric.getName()))
+                throw new IllegalArgumentException("Duplicate column: " + metric.getName());
+            names[i] = metric.getName();
+            doubles[i] = metric.isFloatingPoint();
+            metrics[i] = metric;
+        }
+        
+        StringBuilder headerBuilder = new StringBuilder("agent,");
+        for (String name : names)
+        {
+            headerBuilder.append(name).append(",");
+        }
+        headerBuilder.append("settings");
+        this.header = headerBuilder.toString();
+    }
+    
+    private ColumnLayout(ColumnLayout source)
+    {
+        this.count = source.count;
+        this.names = source.names;
+        this.metrics = source.metrics;
+        this.header = source.header;
+        this.doubles = new boolean[count];
+        Arrays.fill(doubles, FIRST_METRIC, count, true);
+        doubles[WALL_CLOCK] = true;
+    }
+    
+    /**
+     * @return The same columns, every metric holding a double. Used for rows of
+     *         aggregates such as means, sinks write them under the original
+     *         layout's types.
+     */
+    ColumnLayout toDoubles()
+    {
+        return new ColumnLayout(this);
+    }
+    
+    /**
+     * @return Column index of the named column, or -1.
+     */
+    int indexOf(String name)
+    {
+        for (int i = 0; i < count; ++i)
+        {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+}
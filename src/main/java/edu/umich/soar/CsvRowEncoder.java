@@ -0,0 +1,221 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * <p>
+ * Encodes rows of collected data as comma separated values straight into a
+ * reusable byte buffer. Longs and doubles are converted to ASCII digits by
+ * hand, doubles with a fixed six decimal places like the %f format, so
+ * encoding a row does not allocate once the buffer has grown to fit it.
+ * Strings are encoded as UTF-8.
+ * 
+ * <p>
+ * Doubles too large to scale to a long, NaN and the infinities fall back to
+ * Double.toString. These do not show up in normal data.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class CsvRowEncoder
+{
+    static final int DECIMALS = 6;
+    private static final long SCALE = 1000000L;
+    private static final double MAX_SCALED = Long.MAX_VALUE / (double) SCALE;
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator", "\n").getBytes();
+    
+    private byte[] buf = new byte[512];
+    private int len;
+    
+    byte[] buffer()
+    {
+        return buf;
+    }
+    
+    int length()
+    {
+        return len;
+    }
+    
+    CsvRowEncoder reset()
+    {
+        len = 0;
+        return this;
+    }
+    
+    /**
+     * Encode a complete row, replacing the buffer contents.
+     */
+    CsvRowEncoder encode(Sample sample)
+    {
+        return encode(sample, sample.settings);
+    }
+    
+    /**
+     * Encode a complete row with the given settings value instead of the
+     * sample's, replacing the buffer contents.
+     */
+    CsvRowEncoder encode(Sample sample, String settings)
+    {
+        len = 0;
+        append(sample.agent).append(',');
+        final boolean[] doubles = sample.layout.doubles;
+        for (int i = 0; i < doubles.length; ++i)
+        {
+            if (doubles[i])
+                append(sample.doubles[i]);
+            else
+                append(sample.longs[i]);
+            append(',');
+        }
+        if (settings != null)
+            append(settings);
+        return newLine();
+    }
+    
+    CsvRowEncoder newLine()
+    {
+        ensure(LINE_SEPARATOR.length);
+        for (int i = 0; i < LINE_SEPARATOR.length; ++i)
+        {
+            buf[len++] = LINE_SEPARATOR[i];
+        }
+        return this;
+    }
+    
+    CsvRowEncoder append(char c)
+    {
+        if (c < 0x80)
+        {
+            ensure(1);
+            buf[len++] = (byte) c;
+            return this;
+        }
+        return append(String.valueOf(c));
+    }
+    
+    CsvRowEncoder append(CharSequence s)
+    {
+        if (s == null)
+            return append("null");
+        
+        final int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; ++i)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                ensure(1);
+                buf[len++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                ensure(2);
+                buf[len++] = (byte) (0xc0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buf[len++] = (byte) (0xf0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else
+            {
+                ensure(3);
+                buf[len++] = (byte) (0xe0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+    
+    CsvRowEncoder append(long value)
+    {
+        if (value == Long.MIN_VALUE)
+            return append("-9223372036854775808");
+        
+        ensure(20);
+        if (value < 0)
+        {
+            buf[len++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 0);
+        return this;
+    }
+    
+    CsvRowEncoder append(double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_SCALED)
+            return append(Double.toString(value));
+        
+        long scaled = Math.round(Math.abs(value) * SCALE);
+        ensure(22);
+        if (value < 0 && scaled != 0)
+            buf[len++] = '-';
+        appendDigits(scaled / SCALE, 0);
+        buf[len++] = '.';
+        appendDigits(scaled % SCALE, DECIMALS);
+        return this;
+    }
+    
+    /**
+     * Append a non-negative value, left padded with zeros to at least width
+     * digits.
+     */
+    private void appendDigits(long value, int width)
+    {
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10)
+        {
+            ++digits;
+        }
+        if (digits < width)
+            digits = width;
+        
+        int pos = len + digits;
+        len = pos;
+        do
+        {
+            buf[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+            --digits;
+        }
+        while (digits > 0);
+    }
+    
+    private void ensure(int extra)
+    {
+        if (len + extra <= buf.length)
+            return;
+        
+        byte[] grown = new byte[Math.max(buf.length * 2, len + extra)];
+        System.arraycopy(buf, 0, grown, 0, len);
+        buf = grown;
+    }
+}
@@ -0,0 +1,391 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * Reads the comma separated values written by DataCollector one row at a
+ * time. Lines are read into a reusable byte buffer and numbers are parsed from
+ * the bytes, so reading a row only allocates when the agent name changes.
+ * 
+ * <p>
+ * A reader can start at the header line or, given the column names, at any
+ * line boundary in the middle of the data, which lets a large file be read as
+ * several chunks at once. Repeated header lines, blank lines and rows with too
+ * few fields (a truncated last line) are skipped.
+ * 
+ * <p>
+ * The settings column is quoted and contains commas; it is always the last
+ * field and is returned as written.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class CsvSampleReader
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final InputStream in;
+    private final String[] columnNames;
+    private final double[] values;
+    
+    private byte[] buf = new byte[64 * 1024];
+    private int bufPos;
+    private int bufLen;
+    private long position;      // stream offset of buf[0]
+    
+    private byte[] line = new byte[512];
+    private int lineLen;
+    private long rowPosition;
+    private int settingsStart;
+    private int agentEnd;
+    private String agent;
+    private long skipped;
+    
+    /**
+     * Start at the beginning of a file, reading the column names from the
+     * header line.
+     */
+    CsvSampleReader(InputStream in) throws IOException
+    {
+        this.in = in;
+        if (!readLine())
+            throw new IOException("Missing header line");
+        this.columnNames = parseHeader(new String(line, 0, lineLen, UTF8));
+        this.values = new double[columnNames.length];
+    }
+    
+    /**
+     * Start at a line boundary after the header.
+     * 
+     * @param columnNames
+     *            Names of the value columns, from the file's header.
+     */
+    CsvSampleReader(InputStream in, String[] columnNames)
+    {
+        this.in = in;
+        this.columnNames = columnNames;
+        this.values = new double[columnNames.length];
+    }
+    
+    /**
+     * @return The value columns of a header line, without the agent and
+     *         settings columns.
+     */
+    static String[] parseHeader(String header) throws IOException
+    {
+        String[] fields = header.trim().split(",");
+        if (fields.length < 2 || !fields[0].equals("agent") || !fields[fields.length - 1].equals("settings"))
+            throw new IOException("Not a data collector header: " + header);
+        String[] names = new String[fields.length - 2];
+        System.arraycopy(fields, 1, names, 0, names.length);
+        return names;
+    }
+    
+    int getColumnCount()
+    {
+        return columnNames.length;
+    }
+    
+    String getColumnName(int column)
+    {
+        return columnNames[column];
+    }
+    
+    String[] getColumnNames()
+    {
+        return columnNames.clone();
+    }
+    
+    /**
+     * @return Index of the named value column, or -1.
+     */
+    int getColumnIndex(String name)
+    {
+        for (int i = 0; i < columnNames.length; ++i)
+        {
+            if (columnNames[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+    
+    /**
+     * @return Offset of the current row's first byte from the start of the
+     *         stream.
+     */
+    long getRowPosition()
+    {
+        return rowPosition;
+    }
+    
+    /**
+     * @return Number of bytes read from the stream so far, the offset of the
+     *         next line.
+     */
+    long getPosition()
+    {
+        return position + bufPos;
+    }
+    
+    /**
+     * @return Number of malformed lines skipped so far.
+     */
+    long getSkippedLines()
+    {
+        return skipped;
+    }
+    
+    /**
+     * Read up to and including the next line separator, for starting a chunk
+     * at the line after an arbitrary offset.
+     * 
+     * @return false if the end of the stream was reached first.
+     */
+    boolean skipLine() throws IOException
+    {
+        return readLine();
+    }
+    
+    /**
+     * Read the next data row.
+     * 
+     * @return false if there are no more rows.
+     */
+    boolean next() throws IOException
+    {
+        while (readLine())
+        {
+            if (lineLen == 0 || startsWith("agent,"))
+                continue;
+            if (parse())
+                return true;
+            ++skipped;
+        }
+        return false;
+    }
+    
+    /**
+     * @return The current row's agent name. The same String instance is
+     *         returned for consecutive rows of the same agent.
+     */
+    String getAgent()
+    {
+        if (agent == null || !sameAgent())
+            agent = new String(line, 0, agentEnd, UTF8);
+        return agent;
+    }
+    
+    /**
+     * @return true if the current row is a rollup row (see
+     *         DataCollector.setRollup) rather than an agent's row.
+     */
+    boolean isRollup()
+    {
+        return agentEnd > 0 && line[0] == '*';
+    }
+    
+    /**
+     * @return The settings field of the current row as written, with its
+     *         quotes, or null if it is empty.
+     */
+    String getSettings()
+    {
+        if (settingsStart >= lineLen)
+            return null;
+        return new String(line, settingsStart, lineLen - settingsStart, UTF8);
+    }
+    
+    double getDouble(int column)
+    {
+        return values[column];
+    }
+    
+    long getLong(int column)
+    {
+        return (long) values[column];
+    }
+    
+    void close() throws IOException
+    {
+        in.close();
+    }
+    
+    private boolean startsWith(String prefix)
+    {
+        if (lineLen < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); ++i)
+        {
+            if (line[i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean sameAgent()
+    {
+        // agent names are ASCII in practice, fall back to decoding otherwise
+        if (agent.length() != agentEnd)
+            return false;
+        for (int i = 0; i < agentEnd; ++i)
+        {
+            if (line[i] != agent.charAt(i))
+                return false;
+        }
+        return true;
+    }
+    
+    private boolean parse()
+    {
+        int pos = 0;
+        while (pos < lineLen && line[pos] != ',')
+            ++pos;
+        if (pos == lineLen)
+            return false;
+        agentEnd = pos++;
+        
+        for (int column = 0; column < values.length; ++column)
+        {
+            int start = pos;
+            while (pos < lineLen && line[pos] != ',')
+                ++pos;
+            if (pos == lineLen)
+                return false;
+            values[column] = parseDouble(start, pos);
+            ++pos;
+        }
+        settingsStart = pos;
+        return true;
+    }
+    
+    /**
+     * Parses the [-]digits[.digits] numbers CsvRowEncoder writes, anything
+     * else goes through Double.parseDouble.
+     */
+    private double parseDouble(int start, int end)
+    {
+        if (start == end)
+            return Double.NaN;
+        
+        int pos = start;
+        boolean negative = line[pos] == '-';
+        if (negative)
+            ++pos;
+        long whole = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean dot = false;
+        int digits = 0;
+        for (; pos < end; ++pos)
+        {
+            int c = line[pos];
+            if (c >= '0' && c <= '9')
+            {
+                if (++digits > 18)
+                    return slowParse(start, end);
+                if (dot)
+                {
+                    fraction = fraction * 10 + (c - '0');
+                    scale *= 10;
+                }
+                else
+                {
+                    whole = whole * 10 + (c - '0');
+                }
+            }
+            else if (c == '.' && !dot)
+            {
+                dot = true;
+            }
+            else
+            {
+                return slowParse(start, end);
+            }
+        }
+        double value = whole + (double) fraction / scale;
+        return negative ? -value : value;
+    }
+    
+    private double slowParse(int start, int end)
+    {
+        try
+        {
+            return Double.parseDouble(new String(line, start, end - start, UTF8));
+        }
+        catch (NumberFormatException e)
+        {
+            return Double.NaN;
+        }
+    }
+    
+    private boolean readLine() throws IOException
+    {
+        lineLen = 0;
+        rowPosition = position + bufPos;
+        boolean any = false;
+        while (true)
+        {
+            if (bufPos == bufLen)
+            {
+                position += bufLen;
+                bufPos = 0;
+                bufLen = in.read(buf, 0, buf.length);
+                if (bufLen <= 0)
+                {
+                    bufLen = 0;
+                    return any;
+                }
+            }
+            any = true;
+            
+            int start = bufPos;
+            while (bufPos < bufLen && buf[bufPos] != '\n')
+                ++bufPos;
+            append(start, bufPos);
+            if (bufPos < bufLen)
+            {
+                ++bufPos;
+                if (lineLen > 0 && line[lineLen - 1] == '\r')
+                    --lineLen;
+                return true;
+            }
+        }
+    }
+    
+    private void append(int start, int end)
+    {
+        int count = end - start;
+        if (lineLen + count > line.length)
+        {
+            byte[] grown = new byte[Math.max(line.length * 2, lineLen + count)];
+            System.arraycopy(line, 0, grown, 0, lineLen);
+            line = grown;
+        }
+        System.arraycopy(buf, start, line, lineLen, count);
+        lineLen += count;
+    }
+}
@@ -0,0 +1,73 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Writes rows as comma separated values to an output stream, starting with
+ * the header line. Rows are encoded with a CsvRowEncoder into a buffered
+ * stream so writing a row does not allocate.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class CsvSampleSink implements SampleSink
+{
+    private final OutputStream bout;
+    private final CsvRowEncoder encoder = new CsvRowEncoder();
+    private boolean headerWritten;
+    
+    CsvSampleSink(OutputStream out)
+    {
+        this.bout = new BufferedOutputStream(out, 8192);
+    }
+    
+    @Override
+    public void write(Sample sample) throws IOException
+    {
+        if (!headerWritten)
+        {
+            encoder.reset().append(sample.layout.header).newLine();
+            bout.write(encoder.buffer(), 0, encoder.length());
+            headerWritten = true;
+        }
+        
+        encoder.encode(sample);
+        bout.write(encoder.buffer(), 0, encoder.length());
+    }
+    
+    @Override
+    public void flush() throws IOException
+    {
+        bout.flush();
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        bout.flush();
+    }
+}
@@ -0,0 +1,167 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Fixed size histogram of decision cycle durations in nanoseconds, in the
+ * spirit of HdrHistogram. Buckets are log-linear: each power of two range is
+ * split into 16 equal buckets, so any recorded value is known to within about
+ * 6% and the whole range of a long fits in under a thousand counters.
+ * Recording is a few shifts and an array increment and never allocates.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class CycleHistogram
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+    
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+    private int lowest = BUCKETS;   // lowest bucket in use
+    private int highest = -1;       // highest bucket in use
+    
+    static int bucket(long value)
+    {
+        if (value < SUB_COUNT)
+            return value < 0 ? 0 : (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+    
+    /**
+     * @return The largest value that falls in the bucket.
+     */
+    static long bucketHigh(int bucket)
+    {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        long low = (long) (SUB_COUNT + sub) << shift;
+        return low + (1L << shift) - 1;
+    }
+    
+    void record(long value)
+    {
+        int b = bucket(value);
+        ++counts[b];
+        ++total;
+        if (value > max)
+            max = value;
+        if (b < lowest)
+            lowest = b;
+        if (b > highest)
+            highest = b;
+    }
+    
+    long getTotalCount()
+    {
+        return total;
+    }
+    
+    long getMax()
+    {
+        return max;
+    }
+    
+    /**
+     * @param percentile
+     *            0 to 100
+     * @return An upper bound of the value at the percentile, never more than
+     *         the largest recorded value, or 0 if nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile)
+    {
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int b = lowest; b <= highest; ++b)
+        {
+            seen += counts[b];
+            if (seen >= rank)
+                return Math.min(bucketHigh(b), max);
+        }
+        return max;
+    }
+    
+    void add(CycleHistogram other)
+    {
+        for (int b = other.lowest; b <= other.highest; ++b)
+        {
+            counts[b] += other.counts[b];
+        }
+        total += other.total;
+        if (other.max > max)
+            max = other.max;
+        if (other.lowest < lowest)
+            lowest = other.lowest;
+        if (other.highest > highest)
+            highest = other.highest;
+    }
+    
+    void reset()
+    {
+        for (int b = lowest; b <= highest; ++b)
+        {
+            counts[b] = 0;
+        }
+        total = 0;
+        max = 0;
+        lowest = BUCKETS;
+        highest = -1;
+    }
+    
+    /**
+     * Write the distribution as csv: the upper bound of each non-empty bucket
+     * in milliseconds, the percentile of values at or below it and the count
+     * in the bucket.
+     */
+    void write(OutputStream out) throws IOException
+    {
+        CsvRowEncoder encoder = new CsvRowEncoder();
+        encoder.append("msec,percentile,count").newLine();
+        long seen = 0;
+        for (int b = lowest; b <= highest; ++b)
+        {
+            if (counts[b] == 0)
+                continue;
+            seen += counts[b];
+            encoder.append(Math.min(bucketHigh(b), max) / 1000000.0).append(',');
+            encoder.append(100.0 * seen / total).append(',');
+            encoder.append(counts[b]).newLine();
+        }
+        out.write(encoder.buffer(), 0, encoder.length());
+    }
+}
@@ -21,19 +21,32 @@ package edu.umich.soar;
  * THE SOFTWARE.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jsoar.kernel.Agent;
 import org.jsoar.kernel.SoarProperties;
-import org.jsoar.kernel.smem.SemanticMemory;
-import org.jsoar.kernel.smem.SemanticMemoryStatistics;
-import org.jsoar.util.properties.PropertyManager;
+import org.jsoar.runtime.ThreadedAgent;
 
 /**
  * <p>
@@ -50,6 +63,10 @@ import org.jsoar.util.properties.PropertyManager;
  * creating new ones for it -- callbacks can be very expensive.
  * 
  * <p>
+ * For ThreadedAgents, CollectorService installs these hooks itself and
+ * collects every agent on its own thread at the same decision cycle numbers.
+ * 
+ * <p>
  * Actual data collection can be performed whenever the user likes by calling
  * the collect method to add another row to the data table. Most often these
  * calls to collect are managed by the return value of onUpdateEvent. If
@@ -58,29 +75,66 @@ import org.jsoar.util.properties.PropertyManager;
  * called each decision cycle.
  * 
  * <p>
- * The behavior of onUpdateEvent can be configured by the user in two different
- * ways for the specific needs of the data collection: by decision cycle period
- * or wall clock time period. To collect data every n decision cycles,
- * setPeriodCycles is called with the desired period. To collect data every n
- * milliseconds, setPeriodMillis is called with the desired period.
+ * The max dc columns need to see every decision cycle of every agent, call
+ * onDecisionCycle for each agent from the same update callback to fill them
+ * in. The epmem and smem time columns are only filled in after
+ * setMemoryTiming.
+ * 
+ * <p>
+ * The behavior of onUpdateEvent can be configured by the user in four
+ * different ways for the specific needs of the data collection: by decision
+ * cycle period, wall clock time period, adaptively, or by a scheduler thread.
+ * To collect data every n decision cycles, setPeriodCycles is called with the
+ * desired period. To collect data every n milliseconds, setPeriodMillis is
+ * called with the desired period. setPeriodAdaptive collects at a slow rate
+ * but switches to a fast one around unusual decision cycles.
+ * setPeriodScheduled moves the timing to a background thread, which can also
+ * run collect on ThreadedAgent threads directly so that no per cycle callback
+ * is needed.
  * 
  * <p>
  * The data is collected in a simple csv format written to an output stream of
  * the user's choice. Nothing is set by default so no data is collected until
  * setOutputStream is called with a valid output stream. The first line will be
- * a csv list of column headers (see below). The first line of data will also
- * include a value for the "settings" column, and it will be various agent
- * configuration information relevant to the data being collected. This settings
- * data is very helpful for sanity checks of the data, and it also includes a
- * timestamp.
+ * a csv list of column headers (see below). The first line of data for each
+ * agent will also include a value for the "settings" column, and it will be
+ * various agent configuration information relevant to the data being
+ * collected. This settings data is very helpful for sanity checks of the data,
+ * and it also includes a timestamp.
+ * 
+ * <p>
+ * For readers in the same process, setHistorySize keeps the last rows of each
+ * agent in memory, readable from any thread with getLatestRow, getRecentRows
+ * and getRowsSince. This works with or without an output stream.
+ * 
+ * <p>
+ * A single collector may be shared by any number of agents. Baseline values
+ * used to compute the per-period deltas are kept separately for each agent, see
+ * addAgent and removeAgent.
  * 
  * <p>
  * Flushing the data to the stream can be very expensive, so it is not called
  * during a run. The stream is flushed automatically during onStop and any call
- * to collect after that until onStart is called.
+ * to collect after that until onStart is called. For long runs, consider
+ * setRollingOutput, which splits the data over several files and forces them
+ * to disk from a background thread.
  * 
  * <p>
- * Data columns collected:
+ * Formatting and writing the rows normally happens inside collect, on the
+ * agent thread. Agents with tight timing requirements can call
+ * setAsynchronous so that collect only copies the values into a bounded queue
+ * and a background thread does the rest.
+ * 
+ * <p>
+ * The columns are chosen with setMetrics, addMetric and removeMetric from the
+ * built in Metrics or user defined Metric subclasses. The enabled metrics are
+ * compiled into a flat array of samplers when the output is opened, and the
+ * header line is generated to match. JvmMetrics has optional columns for
+ * garbage collection, heap use and the allocation and cpu time of each
+ * agent's thread.
+ * 
+ * <p>
+ * Data columns collected by default:
  * <table>
  * <tr>
  * <th>Header<th>Description and Units</th>
@@ -90,7 +144,8 @@ import org.jsoar.util.properties.PropertyManager;
  * <td></td>
  * </tr>
  * <tr><td>wall clock</td><td>float seconds</td>
- * <td>time stamp for each data collection</td>
+ * <td>time stamp for each data collection, run time since reset not counting
+ * time stopped</td>
  * </tr>
  * <tr><td>dc num</td><td>decision cycle number</td>
  * <td>decision cycle of the collection</td>
@@ -113,11 +168,11 @@ import org.jsoar.util.properties.PropertyManager;
  * <tr><td>wm current</td><td>current working memory size</td>
  * <td></td>
  * </tr>
- * <tr><td>wm mean</td><td>mean working memory size (wme count)</td>
- * <td>resets on each call to collect</td>
+ * <tr><td>wm mean</td><td>mean working memory size over the period's decision cycles (wme count)</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
  * </tr>
- * <tr><td>wm max</td><td>maximum working memory size (wme count)</td>
- * <td></td>
+ * <tr><td>wm max</td><td>maximum working memory size in the period (wme count)</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
  * </tr>
  * <tr><td>wm additions</td><td>number of working memory element additions</td>
  * <td>resets on each call to collect</td>
@@ -128,7 +183,7 @@ import org.jsoar.util.properties.PropertyManager;
  * <tr><td>max dc time cycle</td><td>the cycle number that reported the longest delay</td>
  * <td>resets on each call to collect</td>
  * </tr>
- * <tr><td>max dc time value</td><td>the time value of the delay of the longest cycle</td>
+ * <tr><td>max dc time value</td><td>the wall time of the longest cycle in microseconds</td>
  * <td>resets on each call to collect</td>
  * </tr>
  * <tr><td>max dc changes cycle</td><td>the cycle number that reported the most wme changes</td>
@@ -143,14 +198,29 @@ import org.jsoar.util.properties.PropertyManager;
  * <tr><td>max dc pf value</td><td>the number of production firings reported by the max cycle</td>
  * <td>resets on each call to collect</td>
  * </tr>
+ * <tr><td>dc msec p50</td><td>median decision cycle wall time in milliseconds</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
+ * <tr><td>dc msec p90</td><td>90th percentile decision cycle wall time in milliseconds</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
+ * <tr><td>dc msec p99</td><td>99th percentile decision cycle wall time in milliseconds</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
+ * <tr><td>dc msec p99.9</td><td>99.9th percentile decision cycle wall time in milliseconds</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
+ * <tr><td>dc msec max</td><td>longest decision cycle wall time in milliseconds</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
  * <tr><td>epmem time</td><td>time spent in episodic memory in milliseconds</td>
- * <td></td>
+ * <td>needs setMemoryTiming</td>
  * </tr>
  * <tr><td>epmem max time cycle</td><td>the cycle number that reported the most time spent in epmem</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
  * </tr>
  * <tr><td>epmem max time value</td><td>the value of the time spent by the max cycle in milliseconds</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
  * </tr>
  * <tr><td>epmem and smem bytes</td><td>amount of memory used by epmem and smem</td>
  * <td></td>
@@ -162,16 +232,16 @@ import org.jsoar.util.properties.PropertyManager;
  * <td></td>
  * </tr>
  * <tr><td>epmem time per dc</td><td>average time spent in epmem per decision cycle in milliseconds</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
  * </tr>
  * <tr><td>smem time</td><td>time spent in semantic memory in milliseconds</td>
- * <td></td>
+ * <td>needs setMemoryTiming</td>
  * </tr>
  * <tr><td>smem max time cycle</td><td>the cycle number that reported the most time spent in smem</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
  * </tr>
  * <tr><td>smem max time value</td><td>the value of the time spent by the max cycle in milliseconds</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
  * </tr>
  * <tr><td>smem retrieves</td><td>smem retrieval count</td>
  * <td></td>
@@ -183,7 +253,13 @@ import org.jsoar.util.properties.PropertyManager;
  * <td></td>
  * </tr>
  * <tr><td>smem time per dc</td><td>average time spent in smem per decision cycle in milliseconds</td>
- * <td>resets on each call to collect</td>
+ * <td>resets on each call to collect, needs setMemoryTiming</td>
+ * </tr>
+ * <tr><td>wm min</td><td>minimum working memory size in the period (wme count)</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
+ * </tr>
+ * <tr><td>wm variance</td><td>sample variance of the working memory size in the period</td>
+ * <td>resets on each call to collect, needs onDecisionCycle</td>
  * </tr>
  * </table>
  * 
@@ -192,91 +268,102 @@ import org.jsoar.util.properties.PropertyManager;
 public class DataCollector
 {
     private static final Log logger = LogFactory.getLog(DataCollector.class);
-    private static final String HEADER;
-    private static final String FORMAT;
+    
+    /**
+     * <p>
+     * What to do with a row when asynchronous writing is enabled and the
+     * writer thread has fallen behind far enough to fill the queue.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Discard the row and count it, see getDroppedSamples.
+         */
+        DROP,
+        
+        /**
+         * Wait in collect until the writer makes room.
+         */
+        BLOCK,
+    }
     
     private enum DataCollectionMode
     {
         DECISION_CYCLES,
         ELAPSED_TIME,
+        ADAPTIVE,
+        SCHEDULED,
     }
     
     private DataCollectionMode mode = DataCollectionMode.DECISION_CYCLES;
     private int periodCycles = 5000;
     private int periodMillis;
+    private long periodNanos;
+    private int burstCycles;
+    private int holdCycles;
+    private final long[] triggerThresholds = new long[3];
+    private double triggerSigmas = 4;
     private String additionalSettings;
+    private final List<Metric> metrics = Metrics.defaults();
+    private ColumnLayout layout;    // compiled from metrics by collect
 
     private OutputStream out = null;
-    private PrintWriter pout;
+    private File binaryFile = null;
+    private File rollingDirectory = null;
+    private String rollingPrefix;
+    private long maxSegmentBytes;
+    private long maxSegmentMillis;
+    private long syncMillis = 1000;
+    private int syncRows;
+    private SampleSink streamSink;  // writes to out
+    private SampleSink sink;        // streamSink or a queue in front of it
+    private int asyncCapacity;
+    private OverflowPolicy overflowPolicy;
+    private long droppedSamples;
+    
+    private AgentState[] states = new AgentState[4];
+    private int stateCount;
+    private int lastSlot;
+    private boolean memoryTiming;
+    private boolean phaseTiming;
+    
+    private boolean rollupEnabled;
+    private int agentRowPeriods = 1;
+    private Rollup rollup;          // rows of the current period
+    private long rollupPeriods;     // reinitialized in reset()
+    
+    private volatile int historySize;
+    private final Map<Agent, SampleHistory> histories = new ConcurrentHashMap<Agent, SampleHistory>();
+    
+    private volatile int startCount;
+    private OutputStream histogramOut;
+    private volatile OutputStream profileOut;
+    private int profileTopN;
+    private OutputStream recorderOut;
+    private long recorderCycleMicros;
+    private long recorderWmeChanges;
+    private int recorderHistory;
+    private long recorderIntervalMillis;
+    private boolean profileHeaderWritten;   // written under the profileOut lock
+    private final CycleHistogram runHistogram = new CycleHistogram();
+    
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> schedule;
+    private final List<ScheduledAgent> scheduledAgents = new CopyOnWriteArrayList<ScheduledAgent>();
+    private final Object scheduledCollectLock = new Object();
+    private volatile boolean due;
+    private volatile boolean running;
     
     private int count;              // reinitialized in reset()
-    private double lastKmsecTime;   // reinitialized in reset()
-    private long lastPfCount;       // reinitialized in reset()
-    private long lastWmCount;       // reinitialized in reset()
-    private long lastWmAdd;         // reinitialized in reset()
-    private long lastWmRem;         // reinitialized in reset()
-    private double lastCpumsecTime; // reinitialized in reset()
-    private double lastSmemTimeMsec;    // reinitialized in reset()
-    // TODO private double lastEpmemTimeMsec;   // reinitialized in reset()
-    private long lastDc;            // reinitialized in reset()
-    private long lastTimeMillis;    // reinitialized in reset()
-    private long offset;            // reinitialized in reset()
-    private long stopTime;          // reinitialized in reset()
-    
-    static
-    {
-        StringBuilder headerBuilder = new StringBuilder();
-        StringBuilder formatBuilder = new StringBuilder();
-        
-        addStat(headerBuilder, "agent", formatBuilder, "%s");
-        addStat(headerBuilder, "wall clock", formatBuilder, "%f");
-        addStat(headerBuilder, "dc num", formatBuilder, "%d");
-        addStat(headerBuilder, "kernel msec", formatBuilder, "%f");
-        addStat(headerBuilder, "avg msec/dc", formatBuilder, "%f");
-        addStat(headerBuilder, "cpu msec", formatBuilder, "%f");
-        addStat(headerBuilder, "pf total", formatBuilder, "%d");
-        addStat(headerBuilder, "average msec/pf", formatBuilder, "%f");
-        addStat(headerBuilder, "wm current", formatBuilder, "%d");
-        addStat(headerBuilder, "wm mean", formatBuilder, "%f");
-        addStat(headerBuilder, "wm max", formatBuilder, "%d");
-        addStat(headerBuilder, "wm additions", formatBuilder, "%d");
-        addStat(headerBuilder, "wm removals", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc time cycle", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc time value", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc changes cycle", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc changes value", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc pf cycle", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "max dc pf value", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "epmem time", formatBuilder, "%f");
-        // TODO addStat(headerBuilder, "epmem max time cycle", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "epmem max time value", formatBuilder, "%f");
-        // TODO addStat(headerBuilder, "epmem and smem bytes", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "epmem queries", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "epmem stores", formatBuilder, "%d");
-        // TODO addStat(headerBuilder, "epmem time per dc", formatBuilder, "%f");
-        addStat(headerBuilder, "smem time", formatBuilder, "%f");
-        addStat(headerBuilder, "smem max time cycle", formatBuilder, "%d");
-        addStat(headerBuilder, "smem max time value", formatBuilder, "%f");
-        addStat(headerBuilder, "smem retrieves", formatBuilder, "%d");
-        addStat(headerBuilder, "smem queries", formatBuilder, "%d");
-        addStat(headerBuilder, "smem stores", formatBuilder, "%d");
-        addStat(headerBuilder, "smem time per dc", formatBuilder, "%f");
-        
-        headerBuilder.append("settings");
-        
-        HEADER = headerBuilder.toString();
-        FORMAT = formatBuilder.toString();
-    }
+    private long lastPeriodNanos;   // reinitialized in reset()
+    private long offsetNanos;       // reinitialized in reset()
+    private long pauseNanos;        // reinitialized in reset()
+    private boolean paused;         // reinitialized in reset()
+    private boolean stopped;        // reinitialized in reset()
+    private volatile boolean unusualCycle;  // reinitialized in reset()
+    private int burstUntil;         // reinitialized in reset()
+    private int lastCollectCount;   // reinitialized in reset()
     
-    private static void addStat(StringBuilder headerBuilder, String header, StringBuilder formatBuilder, String format)
-    {
-        headerBuilder.append(header);
-        headerBuilder.append(",");
-        
-        formatBuilder.append(format);
-        formatBuilder.append(",");
-    }
-
     /**
      * <p>
      * Constructor, default collection mode is by cycle, 5000 cycles.
@@ -295,18 +382,200 @@ public class DataCollector
     {
         flush();
         count = 0;
-        lastKmsecTime = 0;
-        lastCpumsecTime = 0;
-        lastPfCount = 0;
-        lastWmCount = 0;
-        lastWmAdd = 0;
-        lastWmRem = 0;
-        lastSmemTimeMsec = 0;
-        // TODO lastEpmemTimeMsec = 0;
-        lastDc = 0;
-        lastTimeMillis = 0;
-        offset = 0;
-        stopTime = 0;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].reset();
+        }
+        synchronized (runHistogram)
+        {
+            runHistogram.reset();
+        }
+        lastPeriodNanos = 0;
+        offsetNanos = System.nanoTime();
+        pauseNanos = offsetNanos;
+        paused = true;
+        stopped = false;
+        due = false;
+        unusualCycle = false;
+        if (rollup != null)
+            rollup.clear();
+        rollupPeriods = 0;
+        burstUntil = 0;
+        lastCollectCount = 0;
+    }
+    
+    /**
+     * <p>
+     * Register an agent with the collector. Each registered agent keeps its
+     * own baseline values so that deltas are always computed against that
+     * agent's previous collection. Calling collect with an unregistered agent
+     * registers it automatically, so calling this is optional.
+     * 
+     * @param agent
+     *            The agent to register, ignored if it is already registered.
+     */
+    public void addAgent(Agent agent)
+    {
+        getState(agent);
+    }
+    
+    /**
+     * <p>
+     * Forget an agent and its baseline values, for example when it is
+     * disposed. If the agent is collected again later it starts over as if it
+     * were new.
+     * 
+     * @param agent
+     *            The agent to remove, ignored if it is not registered.
+     */
+    public void removeAgent(Agent agent)
+    {
+        for (int i = 0; i < stateCount; ++i)
+        {
+            if (states[i].agent == agent)
+            {
+                states[i].setMemoryTiming(false);
+                states[i].setProductionProfile(0);
+                histories.remove(agent);
+                --stateCount;
+                System.arraycopy(states, i + 1, states, i, stateCount - i);
+                states[stateCount] = null;
+                lastSlot = 0;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * <p>
+     * Choose the columns to collect, in order. Only the samplers of these
+     * metrics run in collect, so leaving a metric out removes its cost as well
+     * as its column. The agent, wall clock, dc num and settings columns are
+     * always written. The default is Metrics.defaults().
+     * 
+     * <p>
+     * Call while the agents are stopped. The current output is closed as if a
+     * new one had been set, so the next row starts with the new header line.
+     * 
+     * @param metrics
+     *            The metrics to collect, with unique names.
+     * @throws IllegalArgumentException
+     *             If two metrics have the same name.
+     */
+    public void setMetrics(List<Metric> metrics)
+    {
+        new ColumnLayout(metrics); // check names before changing anything
+        restartOutput();
+        this.metrics.clear();
+        this.metrics.addAll(metrics);
+    }
+    
+    /**
+     * <p>
+     * Add a column after the current ones, see setMetrics.
+     * 
+     * @param metric
+     *            The metric to add.
+     * @throws IllegalArgumentException
+     *             If there is already a metric with the same name.
+     */
+    public void addMetric(Metric metric)
+    {
+        List<Metric> metrics = new ArrayList<Metric>(this.metrics);
+        metrics.add(metric);
+        setMetrics(metrics);
+    }
+    
+    /**
+     * <p>
+     * Stop collecting a column, see setMetrics.
+     * 
+     * @param name
+     *            The column header.
+     * @return true if the column was removed.
+     */
+    public boolean removeMetric(String name)
+    {
+        List<Metric> metrics = new ArrayList<Metric>(this.metrics);
+        for (Iterator<Metric> iter = metrics.iterator(); iter.hasNext();)
+        {
+            if (iter.next().getName().equals(name))
+            {
+                iter.remove();
+                setMetrics(metrics);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * @return The metrics currently collected, in column order.
+     */
+    public List<Metric> getMetrics()
+    {
+        return Collections.unmodifiableList(new ArrayList<Metric>(metrics));
+    }
+    
+    /**
+     * <p>
+     * Fill in the epmem and smem time columns. JSoar's memory modules do not
+     * keep timers, so this installs phase event listeners on each agent that
+     * time the end of the output phase, where the modules run, and charge it
+     * to each module that did work in the cycle. See MemoryTimer for what the
+     * window includes. The listeners cost two clock reads per decision cycle,
+     * which is why this is off by default.
+     * 
+     * <p>
+     * Call while the agents are stopped.
+     * 
+     * @param enabled
+     *            Whether to time the memory modules of all agents, current and
+     *            future.
+     */
+    public void setMemoryTiming(boolean enabled)
+    {
+        this.memoryTiming = enabled;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].setMemoryTiming(enabled);
+        }
+    }
+    
+    /**
+     * <p>
+     * Fill in the phase columns (Metrics.phases()), which break the decision
+     * cycle's wall time down by phase: input, propose, decide, apply and
+     * output. The input and output phases include the agent's input and
+     * output callbacks, so slow environment code shows up there rather than
+     * in the kernel. This installs before and after phase event listeners on
+     * each agent, two clock reads per phase, which is why it is off by
+     * default. When off no listeners are installed and the columns are 0.
+     * 
+     * <p>
+     * The phase columns are not collected by default, add them with:
+     * 
+     * <pre>
+     * List&lt;Metric&gt; metrics = new ArrayList&lt;Metric&gt;(dc.getMetrics());
+     * metrics.addAll(Metrics.phases());
+     * dc.setMetrics(metrics);
+     * dc.setPhaseTiming(true);
+     * </pre>
+     * 
+     * <p>
+     * Call while the agents are stopped.
+     * 
+     * @param enabled
+     *            Whether to time the phases of all agents, current and
+     *            future.
+     */
+    public void setPhaseTiming(boolean enabled)
+    {
+        this.phaseTiming = enabled;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].setPhaseTiming(enabled);
+        }
     }
     
     /**
@@ -327,11 +596,15 @@ public class DataCollector
      * Set the output stream to write data to.
      * 
      * <p>
-     * The stream is wrapped in a PrintWriter and then print() is called to
-     * commit data to it. flush is only called in onStop() and in collect() if
+     * The stream is wrapped in a buffer and rows are written to it as UTF-8
+     * text. flush is only called in onStop() and in collect() if
      * the agent is not running but should be called more often during long runs
      * to guard against catastrophic failures.
      * 
+     * <p>
+     * In asynchronous mode this waits for rows queued for the previous stream
+     * to be written before switching.
+     * 
      * @param out
      *            Target output stream.
      */
@@ -339,267 +612,948 @@ public class DataCollector
     {
         if (this.out != null && this.out.equals(out))
             return;
+        closeSink();
+        closeStreamSink();
         this.out = out;
-        this.pout = null;
+        this.binaryFile = null;
+        this.rollingDirectory = null;
     }
-
+    
     /**
      * <p>
-     * Set the mode to have onUpdateEvent return true every n calls.
+     * Write data to a file in a compact binary format instead of csv text.
+     * Rows are fixed size records of the same columns, written through a
+     * memory mapped region of the file. Use DataCollectorExport to convert the
+     * file to the csv layout.
      * 
-     * @param cycles
-     *            Have onUpdateEvent return true every this many calls.
+     * <p>
+     * The file is truncated when the first row is written. Its index and agent
+     * names are written when it is closed by dispose or by setting another
+     * output; until then flush makes the rows written so far readable.
+     * 
+     * @param file
+     *            Target file, replaces any output stream.
      */
-    public void setPeriodCycles(int cycles)
+    public void setBinaryOutputFile(File file)
     {
-        this.periodCycles = cycles;
-        this.mode = DataCollectionMode.DECISION_CYCLES;
+        if (this.binaryFile != null && this.binaryFile.equals(file))
+            return;
+        closeSink();
+        closeStreamSink();
+        this.binaryFile = file;
+        this.out = null;
+        this.rollingDirectory = null;
     }
-
+    
     /**
      * <p>
-     * Set the mode to have onUpdateEvent return true based on time, every n
-     * milliseconds.
+     * Write csv data to a series of files in a directory, starting a new file
+     * when the current one gets too big or too old. Each file starts with the
+     * header line and includes every agent's settings on its first row for
+     * that agent, so files can be read individually.
      * 
-     * @param millis
-     *            Have onUpdateEvent return true every this many milliseconds.
+     * <p>
+     * Unlike setOutputStream, rows are regularly forced to disk by a background
+     * thread so a crash during a long run loses little data, see
+     * setSyncPolicy. collect never waits for the disk.
+     * 
+     * @param directory
+     *            Directory for the files, which must exist.
+     * @param prefix
+     *            File name prefix, followed by a time stamp, sequence number
+     *            and ".csv".
+     * @param maxSegmentBytes
+     *            Start a new file after this many bytes, 0 for no limit.
+     * @param maxSegmentMillis
+     *            Start a new file after this many milliseconds, 0 for no
+     *            limit.
      */
-    public void setPeriodMillis(int millis)
+    public void setRollingOutput(File directory, String prefix, long maxSegmentBytes, long maxSegmentMillis)
     {
-        this.periodMillis = millis;
-        this.mode = DataCollectionMode.ELAPSED_TIME;
+        closeSink();
+        closeStreamSink();
+        this.rollingDirectory = directory;
+        this.rollingPrefix = prefix;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.out = null;
+        this.binaryFile = null;
     }
     
     /**
      * <p>
-     * Start the wall clock. Call on system event start.
+     * Set how often rolling output files are forced to disk. Default is every
+     * second. Takes effect for the next output set with setRollingOutput or the
+     * next file after dispose.
      * 
-     * <p>
-     * This method must be called from the same thread that fired the event.
+     * @param millis
+     *            Sync at least this often, 0 to not sync on time.
+     * @param rows
+     *            Sync after this many rows, 0 to not sync on row count.
      */
-    public void onStart()
+    public void setSyncPolicy(long millis, int rows)
     {
-    	offset += System.currentTimeMillis() - stopTime;
-    	stopTime = 0;
+        this.syncMillis = millis;
+        this.syncRows = rows;
     }
-    
+
     /**
      * <p>
-     * Stop the wall clock and flush the stream. Call on system event stop.
+     * Move formatting and writing off the thread calling collect. Each call to
+     * collect only copies the row's values into a preallocated queue, and a
+     * background thread formats the rows and writes them to the output stream.
      * 
      * <p>
-     * This method must be called from the same thread that fired the event.
+     * In this mode flush does not wait, it asks the writer thread to flush once
+     * it has written everything queued so far. Call dispose to wait for all
+     * queued rows to be written.
+     * 
+     * @param capacity
+     *            Maximum number of rows waiting to be written.
+     * @param policy
+     *            What collect does when the queue is full.
      */
-    public void onStop()
+    public void setAsynchronous(int capacity, OverflowPolicy policy)
     {
-    	stopTime = System.currentTimeMillis();
-    	flush();
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (policy == null)
+            throw new NullPointerException("policy");
+        
+        closeSink();
+        this.asyncCapacity = capacity;
+        this.overflowPolicy = policy;
     }
     
     /**
      * <p>
-     * Call every decision cycle, returns true if it is time to call collect().
-     * 
-     * <p>
-     * Take care to call this once for all agents every decision cycle. The
-     * easiest way to do this is to use one of the update events on the kernel,
-     * such as smlUpdateEventId.smlEVENT_AFTER_ALL_OUTPUT_PHASES.
-     * 
+     * Format and write rows on the thread calling collect, the default. Waits
+     * for any rows queued in asynchronous mode to be written.
+     */
+    public void setSynchronous()
+    {
+        closeSink();
+        this.asyncCapacity = 0;
+        this.overflowPolicy = null;
+    }
+    
+    /**
      * <p>
-     * If it returns true, call collect for each agent in the kernel.
+     * Number of rows discarded because the asynchronous queue was full, see
+     * OverflowPolicy.DROP.
      * 
+     * @return Rows dropped since this collector was created.
+     */
+    public long getDroppedSamples()
+    {
+        SampleSink sink = this.sink;
+        long dropped = droppedSamples;
+        if (sink instanceof AsyncSampleSink)
+            dropped += ((AsyncSampleSink) sink).getDropped();
+        return dropped;
+    }
+    
+    /**
      * <p>
-     * This method must be called from the same thread that fired the event.
-     * 
-     * @return true if it is time to call collect for each agent.
+     * Write any queued rows, flush the stream and stop the writer thread if
+     * there is one. A binary output file is completed and closed, an output
+     * stream is flushed but not closed. Collection stops until a new output is
+     * set. The scheduler thread is stopped too, call setPeriodScheduled again
+     * to restart it.
      */
-    public boolean onUpdateEvent()
+    public void dispose()
     {
-        ++count;
-        
-        if (!isEnabled())
-            return false;
-
-        switch (mode)
+        if (scheduler != null)
         {
-        case DECISION_CYCLES:
-            return count % periodCycles == 0;
-                
-        case ELAPSED_TIME:
-            long now = System.currentTimeMillis();
-            if (lastTimeMillis == 0)
-            {
-                lastTimeMillis = now;
-                return false;
-            }
-            long deltaMillis = now - lastTimeMillis;
-            if (logger.isTraceEnabled())
-            {
-                logger.trace("Delta millis: " + deltaMillis);
-            }
-            if (deltaMillis >= periodMillis)
-            {
-                lastTimeMillis += periodMillis;
-                return true;
-            }
-            return false;
+            scheduler.shutdownNow();
+            scheduler = null;
+            schedule = null;
         }
-        
-        // unreachable unless more modes added
-        return false;
+        closeSink();
+        closeStreamSink();
+        this.out = null;
+        this.binaryFile = null;
+        this.rollingDirectory = null;
     }
 
     /**
      * <p>
-     * Collect stats from the agent and write them to the output stream without
-     * flushing.
+     * Write rollup rows for each period, aggregating the rows of all agents:
+     * the sum, mean, minimum and maximum of every column and the skew, the
+     * largest value over the median, showing how far the slowest agent is
+     * from a typical one. The statistic is in the agent column ("*sum",
+     * "*mean", "*min", "*max", "*skew"), and the wall clock and dc num
+     * columns hold the latest values of the period.
      * 
      * <p>
-     * Call this method for each agent in a kernel after a call to onUpdateEvent
-     * (called each decision cycle) returns true.
+     * The rollup is updated as each agent is collected and written after the
+     * last registered agent of the period, or when an agent is collected a
+     * second time before the others. With many agents the agent rows can be
+     * written less often than the rollup.
      * 
+     * @param enabled
+     *            Whether to write rollup rows.
+     * @param agentRowPeriods
+     *            Write agent rows every this many periods, 1 for every
+     *            period. Rollups always include every period.
+     */
+    public void setRollup(boolean enabled, int agentRowPeriods)
+    {
+        if (agentRowPeriods < 1)
+            throw new IllegalArgumentException("agentRowPeriods must be positive: " + agentRowPeriods);
+        this.rollupEnabled = enabled;
+        this.agentRowPeriods = enabled ? agentRowPeriods : 1;
+        this.rollup = null;
+    }
+    
+    /**
      * <p>
-     * A header line and the agent's current settings are written once the first
-     * time this is called.
+     * Keep the last rows collected for each agent in memory, so they can be
+     * read in process with getLatestRow, getRecentRows and getRowsSince
+     * instead of parsing the output. Rows are kept even if no output is set.
      * 
      * <p>
-     * The data format is a simple comma separated values text document. Opens
-     * directly with Microsoft Excel and LibreOffice.
+     * The rows are stored in preallocated rings, adding one does not lock or
+     * allocate. The readers can be called from any thread, never block the
+     * agent thread, and only allocate the rows they return. A ring starts over
+     * empty when its size or the metrics change.
      * 
+     * @param rows
+     *            Rows to keep per agent, 0 to keep none.
+     */
+    public void setHistorySize(int rows)
+    {
+        if (rows < 0)
+            throw new IllegalArgumentException("rows must not be negative: " + rows);
+        this.historySize = rows;
+        if (rows == 0)
+        {
+            histories.clear();
+            for (int i = 0; i < stateCount; ++i)
+            {
+                states[i].history = null;
+            }
+        }
+    }
+    
+    /**
+     * @return Rows kept per agent, see setHistorySize.
+     */
+    public int getHistorySize()
+    {
+        return historySize;
+    }
+    
+    /**
+     * @return The rings of all agents, safe to iterate from any thread.
+     */
+    Collection<SampleHistory> getHistories()
+    {
+        return histories.values();
+    }
+    
+    /**
      * <p>
-     * Occasionally call flush() to guard against catastrophic failures.
+     * The newest row kept for an agent, see setHistorySize. Safe to call from
+     * any thread.
      * 
+     * @param agent
+     *            The agent.
+     * @return The row, or null if none is kept.
+     */
+    public SampleRow getLatestRow(Agent agent)
+    {
+        SampleHistory history = histories.get(agent);
+        return history != null ? history.latest() : null;
+    }
+    
+    /**
      * <p>
-     * This method must be called from the same thread that fired the event.
+     * The newest rows kept for an agent, see setHistorySize. Safe to call from
+     * any thread.
      * 
      * @param agent
-     *            The agent to collect data from.
+     *            The agent.
+     * @param count
+     *            Maximum number of rows to return, 0 or less returns no rows.
+     * @return Up to count rows, oldest first.
      */
-    public void collect(Agent agent)
+    public List<SampleRow> getRecentRows(Agent agent, int count)
     {
-        if (!isEnabled())
-            return;
-        
-        logger.debug("Collecting data.");
-        try {
-            PrintWriter pout = this.pout;
-            boolean firstPass = pout == null;
-            if (firstPass)
+        SampleHistory history = histories.get(agent);
+        if (history == null)
+            return Collections.emptyList();
+        return history.recent(count);
+    }
+    
+    /**
+     * <p>
+     * The rows kept for an agent collected after a decision cycle, see
+     * setHistorySize. Safe to call from any thread.
+     * 
+     * @param agent
+     *            The agent.
+     * @param dc
+     *            Return rows with a dc num greater than this.
+     * @return The rows still kept, oldest first.
+     */
+    public List<SampleRow> getRowsSince(Agent agent, long dc)
+    {
+        SampleHistory history = histories.get(agent);
+        if (history == null)
+            return Collections.emptyList();
+        return history.since(dc);
+    }
+
+    /**
+     * <p>
+     * Set a stream to receive the decision cycle duration histogram for the
+     * whole run, merged over all agents, each time onStop is called. The
+     * histogram is written as csv with one line per non-empty bucket: upper
+     * bound in milliseconds, percentile and count. Percentiles for each period
+     * are in the dc msec columns. Needs onDecisionCycle.
+     * 
+     * @param out
+     *            Target output stream, or null to not write the histogram.
+     */
+    public void setHistogramOutputStream(OutputStream out)
+    {
+        this.histogramOut = out;
+    }
+
+    /**
+     * <p>
+     * Set a stream to receive the productions that fired most in each
+     * period, for each agent. Each collect writes up to topN csv lines for
+     * the agent, after the header "agent,dc num,rank,production,firings", with
+     * the same agent and dc num as the agent's row. Production names are
+     * quoted like the settings column. Productions that did not fire are left
+     * out.
+     * 
+     * <p>
+     * Firing counts are read from every production of the agent once per
+     * period, with no per cycle cost. The first period counts firings since
+     * the agent was initialized. The stream is flushed with onStop.
+     * 
+     * @param out
+     *            Target output stream, or null to stop profiling.
+     * @param topN
+     *            Number of productions to write per agent and period.
+     */
+    public void setProfileOutputStream(OutputStream out, int topN)
+    {
+        if (out != null && topN < 1)
+            throw new IllegalArgumentException("topN must be positive: " + topN);
+        this.profileTopN = topN;
+        this.profileHeaderWritten = false;
+        this.profileOut = out;
+    }
+
+    /**
+     * <p>
+     * Write a detailed record of every decision cycle that takes longer than
+     * cycleMicros or changes more than wmeChanges wmes to a separate stream,
+     * as soon as the cycle ends. Each record has the agent, cycle number, time
+     * stamp, the cycle's duration, wme changes, firings, working memory size
+     * and goal stack depth, the time of each phase if setPhaseTiming is on,
+     * and the durations of the agent's last historyCycles cycles. See
+     * FlightRecorder.HEADER, which is written to the stream by this call.
+     * 
+     * <p>
+     * Needs onDecisionCycle. Nothing is written or allocated for cycles under
+     * the thresholds. At most one record is written per agent every
+     * minIntervalMillis, later triggers are counted in the next record.
+     * 
+     * <p>
+     * Call while the agents are stopped.
+     * 
+     * @param out
+     *            Target output stream, or null to stop recording.
+     * @param cycleMicros
+     *            Cycle wall time threshold in microseconds, 0 for none.
+     * @param wmeChanges
+     *            Cycle wme changes threshold, 0 for none.
+     * @param historyCycles
+     *            Number of recent cycle durations in each record.
+     * @param minIntervalMillis
+     *            Least time between two records of an agent.
+     */
+    public void setFlightRecorder(OutputStream out, long cycleMicros, long wmeChanges, int historyCycles,
+            long minIntervalMillis)
+    {
+        if (out != null && historyCycles < 1)
+            throw new IllegalArgumentException("historyCycles must be positive: " + historyCycles);
+        this.recorderOut = out;
+        this.recorderCycleMicros = cycleMicros;
+        this.recorderWmeChanges = wmeChanges;
+        this.recorderHistory = historyCycles;
+        this.recorderIntervalMillis = minIntervalMillis;
+        if (out != null)
+        {
+            try
+            {
+                // encoded and terminated like the records
+                CsvRowEncoder encoder = new CsvRowEncoder().append(FlightRecorder.HEADER).newLine();
+                out.write(encoder.buffer(), 0, encoder.length());
+            }
+            catch (IOException e)
             {
-                pout = new PrintWriter(out);
-                this.pout = pout;
-                pout.println(HEADER);
+                logger.error("Error writing flight recorder header", e);
             }
+        }
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].recorder = createRecorder(states[i]);
+        }
+    }
+
+    /**
+     * <p>
+     * Set the mode to have onUpdateEvent return true every n calls.
+     * 
+     * @param cycles
+     *            Have onUpdateEvent return true every this many calls.
+     */
+    public void setPeriodCycles(int cycles)
+    {
+        this.periodCycles = cycles;
+        setMode(DataCollectionMode.DECISION_CYCLES);
+    }
+
+    /**
+     * <p>
+     * Set the mode to have onUpdateEvent return true based on time, every n
+     * milliseconds.
+     * 
+     * @param millis
+     *            Have onUpdateEvent return true every this many milliseconds.
+     */
+    public void setPeriodMillis(int millis)
+    {
+        this.periodMillis = millis;
+        this.periodNanos = millis * 1000000L;
+        setMode(DataCollectionMode.ELAPSED_TIME);
+    }
     
-            final PropertyManager props = agent.getProperties();
-            
-            long dc = props.get(SoarProperties.DECISION_PHASES_COUNT);
-            long deltaDc = dc - lastDc;
-            lastDc = dc;
-            if (dc < 1)
+    /**
+     * <p>
+     * Set the mode to have a background thread decide when to collect, every n
+     * milliseconds. onUpdateEvent then only reads a flag set by that thread
+     * instead of counting or reading the clock.
+     * 
+     * <p>
+     * Agents added with addScheduledAgent need no per cycle hook at all: the
+     * background thread has collect run on the agent's own thread between
+     * decision cycles.
+     * 
+     * @param millis
+     *            Collect every this many milliseconds while the agents run.
+     */
+    public void setPeriodScheduled(int millis)
+    {
+        if (millis < 1)
+            throw new IllegalArgumentException("period must be positive: " + millis);
+        this.periodMillis = millis;
+        setMode(DataCollectionMode.SCHEDULED);
+    }
+    
+    /**
+     * <p>
+     * Have the scheduler collect from this agent on its own thread, see
+     * setPeriodScheduled. Do not also call collect for the agent from an
+     * update callback. onStart and onStop are still needed, since nothing is
+     * collected while stopped.
+     * 
+     * <p>
+     * Call while the agents are stopped.
+     * 
+     * @param threaded
+     *            The agent to collect from.
+     */
+    public void addScheduledAgent(ThreadedAgent threaded)
+    {
+        addAgent(threaded.getAgent());
+        for (ScheduledAgent scheduled : scheduledAgents)
+        {
+            if (scheduled.threaded == threaded)
                 return;
-            
-            // getKParamStatsKernelCPUTime returns seconds, divide to get msec
-            double kmsec = agent.getTotalKernelTimer().getTotalSeconds();
-            double deltaKmsecTime = kmsec - lastKmsecTime;
-            lastSmemTimeMsec = kmsec;
-            double kmsecTotalTimePerDc = deltaDc > 0 ? deltaKmsecTime / deltaDc : 0;
-            
-            // getKParamStatsTotalCPUTime returns seconds, divide to get msec
-            double tmsec = agent.getTotalCpuTimer().getTotalSeconds();
-            double deltaCpumsecTime = tmsec - lastCpumsecTime;
-            lastCpumsecTime = tmsec;
+        }
+        scheduledAgents.add(new ScheduledAgent(threaded));
+    }
+    
+    /**
+     * <p>
+     * Stop collecting from an agent added with addScheduledAgent. Its
+     * baseline values are kept, see removeAgent.
+     * 
+     * @param threaded
+     *            The agent to stop collecting from.
+     */
+    public void removeScheduledAgent(ThreadedAgent threaded)
+    {
+        for (ScheduledAgent scheduled : scheduledAgents)
+        {
+            if (scheduled.threaded == threaded)
+                scheduledAgents.remove(scheduled);
+        }
+    }
+    
+    /**
+     * <p>
+     * Set the mode to collect every baseCycles calls to onUpdateEvent, but
+     * every burstCycles calls around unusual decision cycles. A cycle is
+     * unusual if its wall time, wme changes or production firings cross the
+     * thresholds set with setAdaptiveTriggers, or are well above the agent's
+     * moving average. The fast rate holds for holdCycles after the last
+     * unusual cycle, then the collector backs off to the base rate.
+     * 
+     * <p>
+     * Cycles are checked in onDecisionCycle, which must be called for each
+     * agent before onUpdateEvent in the same cycle.
+     * 
+     * @param baseCycles
+     *            Have onUpdateEvent return true every this many calls
+     *            normally.
+     * @param burstCycles
+     *            Have onUpdateEvent return true every this many calls around
+     *            unusual cycles.
+     * @param holdCycles
+     *            Stay at the fast rate this many calls after the last unusual
+     *            cycle.
+     */
+    public void setPeriodAdaptive(int baseCycles, int burstCycles, int holdCycles)
+    {
+        if (baseCycles < 1 || burstCycles < 1)
+            throw new IllegalArgumentException("periods must be positive");
+        this.periodCycles = baseCycles;
+        this.burstCycles = burstCycles;
+        this.holdCycles = holdCycles;
+        setMode(DataCollectionMode.ADAPTIVE);
+    }
+    
+    /**
+     * <p>
+     * Set what makes a decision cycle unusual for setPeriodAdaptive. By
+     * default only the moving average is used, at 4 standard deviations.
+     * 
+     * @param cycleMicros
+     *            Cycle wall time in microseconds, 0 for no fixed threshold.
+     * @param wmeChanges
+     *            Wme additions plus removals in one cycle, 0 for no fixed
+     *            threshold.
+     * @param firings
+     *            Production firings in one cycle, 0 for no fixed threshold.
+     * @param sigmas
+     *            Standard deviations above the moving average, 0 to only use
+     *            the fixed thresholds.
+     */
+    public void setAdaptiveTriggers(long cycleMicros, long wmeChanges, long firings, double sigmas)
+    {
+        triggerThresholds[0] = cycleMicros;
+        triggerThresholds[1] = wmeChanges;
+        triggerThresholds[2] = firings;
+        triggerSigmas = sigmas;
+        setMode(mode);
+    }
+    
+    private void setMode(DataCollectionMode mode)
+    {
+        this.mode = mode;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].detector = createDetector();
+        }
+        
+        if (schedule != null)
+        {
+            schedule.cancel(false);
+            schedule = null;
+        }
+        if (mode == DataCollectionMode.SCHEDULED)
+        {
+            if (scheduler == null)
+            {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "DataCollector scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            schedule = scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run()
+                {
+                    onSchedule();
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Runs on the scheduler thread, must not touch the agents.
+     */
+    private void onSchedule()
+    {
+        if (!running)
+            return;
+        due = true;
+        for (final ScheduledAgent scheduled : scheduledAgents)
+        {
+            // skip the agent if its last collect has not run yet
+            if (scheduled.pending)
+                continue;
+            scheduled.pending = true;
+            scheduled.threaded.execute(new Callable<Void>() {
+                @Override
+                public Void call()
+                {
+                    try
+                    {
+                        // agent threads run in parallel, collect is not
+                        // thread safe
+                        synchronized (scheduledCollectLock)
+                        {
+                            collect(scheduled.threaded.getAgent());
+                        }
+                    }
+                    finally
+                    {
+                        scheduled.pending = false;
+                    }
+                    return null;
+                }
+            }, null);
+        }
+    }
+    
+    private FlightRecorder createRecorder(AgentState state)
+    {
+        if (recorderOut == null)
+            return null;
+        return new FlightRecorder(state, recorderOut, recorderCycleMicros, recorderWmeChanges, recorderHistory,
+                recorderIntervalMillis);
+    }
+    
+    private AnomalyDetector createDetector()
+    {
+        if (mode != DataCollectionMode.ADAPTIVE)
+            return null;
+        return new AnomalyDetector(triggerThresholds.clone(), triggerSigmas);
+    }
+    
+    /**
+     * <p>
+     * Start the wall clock. Call on system event start.
+     * 
+     * <p>
+     * This method must be called from the same thread that fired the event.
+     */
+    public void onStart()
+    {
+        if (paused)
+        {
+            offsetNanos += System.nanoTime() - pauseNanos;
+            paused = false;
+        }
+        stopped = false;
+        running = true;
+        ++startCount;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            // so output listeners added before the run are not timed as memory
+            if (states[i].memoryTimer != null)
+                states[i].memoryTimer.moveMarksLast();
+        }
+    }
+    
+    /**
+     * <p>
+     * Stop the wall clock and flush the stream. Call on system event stop.
+     * 
+     * <p>
+     * This method must be called from the same thread that fired the event.
+     */
+    public void onStop()
+    {
+        running = false;
+        pauseNanos = System.nanoTime();
+        paused = true;
+        stopped = true;
+    	flush();
+    	flushProfile();
+    	writeRunHistogram();
+    }
+    
+    /**
+     * <p>
+     * Call every decision cycle, returns true if it is time to call collect().
+     * 
+     * <p>
+     * Take care to call this once for all agents every decision cycle. The
+     * easiest way to do this is to use one of the update events on the kernel,
+     * such as smlUpdateEventId.smlEVENT_AFTER_ALL_OUTPUT_PHASES.
+     * 
+     * <p>
+     * If it returns true, call collect for each agent in the kernel.
+     * 
+     * <p>
+     * This method must be called from the same thread that fired the event.
+     * 
+     * @return true if it is time to call collect for each agent.
+     */
+    public boolean onUpdateEvent()
+    {
+        if (mode == DataCollectionMode.SCHEDULED)
+        {
+            // the scheduler thread keeps the time
+            if (!due)
+                return false;
+            due = false;
+            return isEnabled();
+        }
+        
+        ++count;
+        
+        if (!isEnabled())
+            return false;
 
-            long pf = props.get(SoarProperties.PRODUCTION_FIRING_COUNT);
-            long deltaPfCount = pf - lastPfCount;
-            lastPfCount = pf;
-            double meanMsecPerPf = deltaPfCount > 0 ? deltaKmsecTime / deltaPfCount : 0;
+        switch (mode)
+        {
+        case DECISION_CYCLES:
+            return count % periodCycles == 0;
                 
-            long wmcount = agent.getNumWmesInRete();
+        case ELAPSED_TIME:
+            long now = System.nanoTime();
+            if (lastPeriodNanos == 0)
+            {
+                lastPeriodNanos = now;
+                return false;
+            }
+            long deltaNanos = now - lastPeriodNanos;
+            if (deltaNanos >= periodNanos)
+            {
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace("Delta millis: " + deltaNanos / 1000000);
+                }
+                lastPeriodNanos += periodNanos;
+                return true;
+            }
+            return false;
             
-            // We want wmmean reset each call to collect so we can't use the stat
-            //double wmmean = response.GetArgFloat(sml.sml_Names.getKParamStatsWmeCountAverage(), 0);
-            long deltaWmCount = wmcount - lastWmCount;
-            lastWmCount = wmcount;
-            double meanWmCountPerDc = deltaDc > 0 ? deltaWmCount / deltaDc : 0;
+        case ADAPTIVE:
+            if (unusualCycle)
+            {
+                unusualCycle = false;
+                if (count > burstUntil && logger.isDebugEnabled())
+                {
+                    logger.debug("Unusual cycle, collecting every " + burstCycles + " cycles");
+                }
+                burstUntil = count + holdCycles;
+            }
+            int period = count <= burstUntil ? burstCycles : periodCycles;
+            if (count - lastCollectCount >= period)
+            {
+                lastCollectCount = count;
+                return true;
+            }
+            return false;
             
-            long wmmax = props.get(SoarProperties.MAX_WM_SIZE);
+        case SCHEDULED:
+            // handled above
+            break;
+        }
+        
+        // unreachable unless more modes added
+        return false;
+    }
 
-            long wmaddTotal = props.get(SoarProperties.WME_ADDITION_COUNT);
-            long deltaWmAdd = wmaddTotal - lastWmAdd;
-            lastWmAdd = wmaddTotal;
+    /**
+     * <p>
+     * Call every decision cycle for each agent to fill in the max dc columns.
+     * Records the wall time, production firings and wme changes of the cycle
+     * that just finished, keeping the largest of each until the next call to
+     * collect for the agent. If this is never called those columns are zero.
+     * 
+     * <p>
+     * This is cheap: a clock read and a few counter reads. It is best called
+     * from an existing per-cycle callback on the agent's thread, such as the
+     * one calling onUpdateEvent.
+     * 
+     * <p>
+     * This method must be called from the same thread that fired the event.
+     * 
+     * <p>
+     * Not thread safe across agents. Like collect, it looks the agent up in
+     * the collector's agent table, a linear scan that also updates a shared
+     * lookup hint and adds the agent if it is new. Calls for all agents must
+     * therefore come from one thread, or be serialized with every other call
+     * into the collector. Agents running on their own threads should be
+     * attached to a CollectorService instead, which looks each agent up once
+     * and keeps its state, so its per cycle call needs no lookup or lock.
+     * 
+     * @param agent
+     *            The agent that completed a decision cycle.
+     */
+    public void onDecisionCycle(Agent agent)
+    {
+        onDecisionCycle(getState(agent));
+    }
+    
+    /**
+     * Like onDecisionCycle(Agent) for callers that keep the agent's state,
+     * see getAgentState.
+     */
+    void onDecisionCycle(AgentState state)
+    {
+        if (state.onDecisionCycle(startCount))
+            unusualCycle = true;
+    }
+    
+    /**
+     * Register an agent and return its state, so a caller running on the
+     * agent's thread can skip the lookup every cycle and is not affected by
+     * other agents being added or removed.
+     */
+    AgentState getAgentState(Agent agent)
+    {
+        return getState(agent);
+    }
+
+    /**
+     * <p>
+     * Collect stats from the agent and write them to the output stream without
+     * flushing.
+     * 
+     * <p>
+     * Call this method for each agent in a kernel after a call to onUpdateEvent
+     * (called each decision cycle) returns true.
+     * 
+     * <p>
+     * A header line is written once the first time this is called, and the
+     * agent's current settings are written with the first row for each agent.
+     * 
+     * <p>
+     * The data format is a simple comma separated values text document. Opens
+     * directly with Microsoft Excel and LibreOffice. Use DataCollectorAnalyzer
+     * to summarize runs too large for a spreadsheet.
+     * 
+     * <p>
+     * Occasionally call flush() to guard against catastrophic failures.
+     * 
+     * <p>
+     * This method must be called from the same thread that fired the event.
+     * 
+     * @param agent
+     *            The agent to collect data from.
+     */
+    public void collect(Agent agent)
+    {
+        if (!isEnabled())
+            return;
+        
+        logger.debug("Collecting data.");
+        try {
+            ColumnLayout layout = this.layout;
+            if (layout == null)
+            {
+                layout = new ColumnLayout(metrics);
+                this.layout = layout;
+            }
             
-            long wmremTotal = props.get(SoarProperties.WME_REMOVAL_COUNT);
-            long deltaWmRem = wmremTotal - lastWmRem;
-            lastWmRem = wmremTotal;
+            SampleSink sink = this.sink;
+            if (sink == null && hasOutput())
+            {
+                if (streamSink == null)
+                    streamSink = createStreamSink(layout);
+                sink = streamSink;
+                if (asyncCapacity > 0)
+                    sink = new AsyncSampleSink(sink, layout, asyncCapacity, overflowPolicy);
+                this.sink = sink;
+            }
+    
+            final AgentState state = getState(agent);
+            if (state.layout != layout)
+                state.compile(layout);
             
-            // TODO long maxdctimec = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleTimeCycle(), 0L);
-            // TODO long maxdctimev = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleTimeValueUSec(), 0L);
-            // TODO long maxdcwmcc = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleWMChangesCycle(), 0L);
-            // TODO long maxdcwmcv = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleWMChangesValue(), 0L);
-            // TODO long maxdcpfcc = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleFireCountCycle(), 0L);
-            // TODO long maxdcpfcv = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleFireCountValue(), 0L);
+            long dc = state.dcCount.get();
+            long deltaDc = dc - state.lastDc;
+            state.lastDc = dc;
+            if (dc < 1)
+                return;
             
-            // TODO long epmemMaxTimeCycle = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleEpMemTimeCycle(), 0);
-            // TODO double epmemMaxTimeValueMsec = response.GetArgFloat(sml.sml_Names.getKParamStatsMaxDecisionCycleEpMemTimeValueSec(), 0) * 1000;
+            final Sample sample = state.sample;
+            sample.agent = agent.getName();
+            sample.doubles[ColumnLayout.WALL_CLOCK] = (System.nanoTime() - offsetNanos) / 1000000000.0;
+            sample.longs[ColumnLayout.DC_NUM] = dc;
             
-            // TODO long smemMaxTimeCycle = response.GetArgInt(sml.sml_Names.getKParamStatsMaxDecisionCycleSMemTimeCycle(), 0);
-            // TODO double smemMaxTimeValueMsec = response.GetArgFloat(sml.sml_Names.getKParamStatsMaxDecisionCycleSMemTimeValueSec(), 0) * 1000;
+            final Metric.Sampler[] samplers = state.samplers;
+            final boolean[] doubles = layout.doubles;
+            for (int i = ColumnLayout.FIRST_METRIC; i < doubles.length; ++i)
+            {
+                if (doubles[i])
+                    sample.doubles[i] = samplers[i].sampleDouble(deltaDc);
+                else
+                    sample.longs[i] = samplers[i].sampleLong(deltaDc);
+            }
             
-            // TODO Scanner epmemTimeScanner = new Scanner(agent.ExecuteCommandLine("epmem -t"));
-            // epmem and smem timers report seconds
-            // TODO double epmemTimeMsec = epmemTimeScanner.skip(".+: ").nextDouble() * 1000;
+            synchronized (runHistogram)
+            {
+                runHistogram.add(state.cycleTimes);
+            }
+            state.resetPeriod();
             
-            // TODO Scanner epmemStatsScanner = new Scanner(agent.ExecuteCommandLine("epmem -S"));
-            // TODO long epmemStores = epmemStatsScanner.skip(".+: ").nextLong(); // Time == Stores (more or less)
-            // TODO epmemStatsScanner.nextLine(); // Time (Stores)
-            // TODO epmemStatsScanner.nextLine(); // SQLite version
-            // TODO long epmemAndSmemBytes = epmemStatsScanner.skip(".+: ").nextLong(); 
-            // TODO epmemStatsScanner.nextLine(); // Bytes
-            // TODO epmemStatsScanner.nextLine(); // Memory Highwater
-            // TODO long epmemQueries = epmemStatsScanner.skip(".+: ").nextLong(); 
-
-            SemanticMemory smem = (SemanticMemory)agent.getAdapter(SemanticMemory.class);
-            SemanticMemoryStatistics smemStats = smem.getStatistics();
-            double smemTimeMsec = 0; // TODO JSoar SemanticMemory does not have timers implemented yet
-    
-            long smemRetrieves = smemStats.getRetrieves();
-            long smemQueries = smemStats.getQueries();
-            long smemStores = smemStats.getStores();
+            if (historySize > 0)
+                getHistory(state, layout).add(sample);
             
-            double wallClock = (System.currentTimeMillis() - offset) / 1000.0;
+            OutputStream profileOut = this.profileOut;
+            if (profileOut != null)
+                writeProfile(state, profileOut, dc);
             
-            double deltaSmemTimeMsec = smemTimeMsec - lastSmemTimeMsec;
-            lastSmemTimeMsec = smemTimeMsec;
-            double smemTimeMsecPerDc = deltaDc > 0 ? deltaSmemTimeMsec / deltaDc : 0;
-
-            // TODO double deltaEpmemTimeMsec = epmemTimeMsec - lastEpmemTimeMsec;
-            // TODO lastEpmemTimeMsec = epmemTimeMsec;
-            // TODO double epmemTimeMsecPerDc = deltaDc > 0 ? deltaEpmemTimeMsec / deltaDc : 0;
+            if (sink == null)
+                return;
             
-            String out = String.format(FORMAT, agent.getName(), wallClock, dc, deltaKmsecTime, kmsecTotalTimePerDc, 
-                    deltaCpumsecTime, deltaPfCount, meanMsecPerPf, wmcount, meanWmCountPerDc, wmmax, deltaWmAdd, deltaWmRem,
-                    // TODO maxdctimec, maxdctimev, maxdcwmcc, maxdcwmcv, maxdcpfcc, maxdcpfcv,
-                    // TODO epmemTimeMsec, epmemMaxTimeCycle, epmemMaxTimeValueMsec, epmemAndSmemBytes, epmemQueries, epmemStores, epmemTimeMsecPerDc, 
-                    smemTimeMsec, 
-                    // TODO smemMaxTimeCycle, smemMaxTimeValueMsec, 
-                    smemRetrieves, smemQueries, smemStores, smemTimeMsecPerDc);
-            pout.print(out);
-            //System.out.println(out);
+            boolean writeAgentRow = true;
+            Rollup rollup = null;
+            if (rollupEnabled)
+            {
+                rollup = this.rollup;
+                if (rollup == null || rollup.layout != layout)
+                {
+                    rollup = new Rollup(layout);
+                    this.rollup = rollup;
+                }
+                // agent seen twice, a new period started before every agent
+                // was collected
+                if (rollup.contains(state))
+                    writeRollup(sink, rollup);
+                rollup.add(state, sample);
+                writeAgentRow = rollupPeriods % agentRowPeriods == 0;
+            }
             
-            if (firstPass)
+            if (writeAgentRow)
             {
-                pout.print(getSettingsString(agent));
+                sample.settings = null;
+                if (!state.settingsWritten)
+                {
+                    sample.settings = getSettingsString(state);
+                    state.settingsWritten = true;
+                }
+                sink.write(sample);
             }
-            pout.println();
+            
+            if (rollup != null && rollup.size() >= stateCount)
+                writeRollup(sink, rollup);
             
             // flush only if stopped
-            if (stopTime != 0)
+            if (stopped)
             {
-                pout.flush();
+                sink.flush();
             }
-
-            // TODO agent.ExecuteCommandLine("stats -R"); // reset max stats
         } 
         catch (Throwable e)
         {
@@ -612,13 +1566,144 @@ public class DataCollector
      */
     public void flush()
     {
-        PrintWriter pout = this.pout;
-        if (pout != null)
-            pout.flush();
+        SampleSink sink = this.sink != null ? this.sink : streamSink;
+        if (sink == null)
+            return;
+        try
+        {
+            sink.flush();
+        }
+        catch (IOException e)
+        {
+            logger.error("Error flushing data", e);
+        }
+    }
+    
+    private void writeProfile(AgentState state, OutputStream profileOut, long dc) throws IOException
+    {
+        state.setProductionProfile(profileTopN);
+        final ProductionProfile profile = state.profile;
+        profile.update();
+        
+        synchronized (profileOut)
+        {
+            if (!profileHeaderWritten)
+            {
+                CsvRowEncoder encoder = new CsvRowEncoder().append(ProductionProfile.HEADER).newLine();
+                profileOut.write(encoder.buffer(), 0, encoder.length());
+                profileHeaderWritten = true;
+            }
+            profile.write(profileOut, state.sample.agent, dc);
+        }
+    }
+    
+    private void flushProfile()
+    {
+        OutputStream profileOut = this.profileOut;
+        if (profileOut == null)
+            return;
+        try
+        {
+            synchronized (profileOut)
+            {
+                profileOut.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Error flushing production profile", e);
+        }
+    }
+    
+    private void writeRunHistogram()
+    {
+        OutputStream histogramOut = this.histogramOut;
+        if (histogramOut == null)
+            return;
+        
+        // include cycles since each agent's last collect
+        CycleHistogram merged = new CycleHistogram();
+        synchronized (runHistogram)
+        {
+            merged.add(runHistogram);
+        }
+        for (int i = 0; i < stateCount; ++i)
+        {
+            merged.add(states[i].cycleTimes);
+        }
+        try
+        {
+            merged.write(histogramOut);
+            histogramOut.flush();
+        }
+        catch (IOException e)
+        {
+            logger.error("Error writing histogram", e);
+        }
+    }
+    
+    private SampleSink createStreamSink(ColumnLayout layout) throws IOException
+    {
+        if (binaryFile != null)
+            return new BinarySampleSink(binaryFile, layout);
+        if (rollingDirectory != null)
+            return new RollingFileSink(rollingDirectory, rollingPrefix, maxSegmentBytes, maxSegmentMillis, syncMillis, syncRows);
+        return new CsvSampleSink(out);
+    }
+    
+    /**
+     * Close the sinks but keep the output so the next row starts it over with
+     * a newly compiled layout.
+     */
+    private void restartOutput()
+    {
+        closeSink();
+        closeStreamSink();
+        layout = null;
+    }
+    
+    private void closeSink()
+    {
+        SampleSink sink = this.sink;
+        if (sink == null)
+            return;
+        this.sink = null;
+        if (sink instanceof AsyncSampleSink)
+            droppedSamples += ((AsyncSampleSink) sink).getDropped();
+        try
+        {
+            sink.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Error closing data sink", e);
+        }
+    }
+    
+    private void closeStreamSink()
+    {
+        rollup = null;
+        SampleSink streamSink = this.streamSink;
+        if (streamSink == null)
+            return;
+        this.streamSink = null;
+        try
+        {
+            streamSink.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Error closing data sink", e);
+        }
+        for (int i = 0; i < stateCount; ++i)
+        {
+            states[i].settingsWritten = false;
+        }
     }
 
-    private String getSettingsString(Agent agent)
+    private String getSettingsString(AgentState state)
     {
+        final Agent agent = state.agent;
         StringBuilder sb = new StringBuilder("\"");
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -629,13 +1714,11 @@ public class DataCollector
         sb.append(",");
         
         sb.append("epmem learning ");
-        sb.append("off");
-        // TODO sb.append(agent.ExecuteCommandLine("epmem -g learning"));
+        sb.append(state.epmem != null && state.epmem.epmem_enabled() ? "on" : "off");
         sb.append(",");
 
         sb.append("smem learning ");
-        SemanticMemory smem = (SemanticMemory)agent.getAdapter(SemanticMemory.class);
-        sb.append(smem.smem_enabled() ? "on" : "off");
+        sb.append(state.smem != null && state.smem.smem_enabled() ? "on" : "off");
         // TODO sb.append(",");
         
         // TODO sb.append("epmem exclusions: [");
@@ -651,9 +1734,79 @@ public class DataCollector
         return sb.toString();
     }
 
+    private AgentState getState(Agent agent)
+    {
+        // Linear scan by identity, agent counts are small and this avoids
+        // hashing and boxing on every collect. Check the slot after the last
+        // hit first since collect is usually called for agents in order.
+        int slot = lastSlot + 1 < stateCount ? lastSlot + 1 : 0;
+        for (int i = 0; i < stateCount; ++i)
+        {
+            if (states[slot].agent == agent)
+            {
+                lastSlot = slot;
+                return states[slot];
+            }
+            if (++slot == stateCount)
+                slot = 0;
+        }
+        
+        if (stateCount == states.length)
+        {
+            AgentState[] grown = new AgentState[states.length * 2];
+            System.arraycopy(states, 0, grown, 0, stateCount);
+            states = grown;
+        }
+        AgentState state = new AgentState(agent);
+        state.setMemoryTiming(memoryTiming);
+        state.setPhaseTiming(phaseTiming);
+        state.detector = createDetector();
+        state.recorder = createRecorder(state);
+        states[stateCount] = state;
+        lastSlot = stateCount++;
+        return state;
+    }
+
+    /**
+     * An agent collected by the scheduler.
+     */
+    private static final class ScheduledAgent
+    {
+        final ThreadedAgent threaded;
+        volatile boolean pending;   // collect queued on the agent thread
+        
+        ScheduledAgent(ThreadedAgent threaded)
+        {
+            this.threaded = threaded;
+        }
+    }
+
+    private void writeRollup(SampleSink sink, Rollup rollup) throws IOException
+    {
+        rollup.write(sink);
+        ++rollupPeriods;
+    }
+    
+    private SampleHistory getHistory(AgentState state, ColumnLayout layout)
+    {
+        SampleHistory history = state.history;
+        if (history == null || history.layout != layout || history.capacity != historySize)
+        {
+            history = new SampleHistory(state.agent.getName(), layout, historySize);
+            state.history = history;
+            histories.put(state.agent, history);
+        }
+        return history;
+    }
+    
+    private boolean hasOutput()
+    {
+        return out != null || binaryFile != null || rollingDirectory != null;
+    }
+
     private boolean isEnabled()
     {
-        return out != null;
+        return hasOutput() || historySize > 0;
     }
     
 }
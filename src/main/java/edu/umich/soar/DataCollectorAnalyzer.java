@@ -0,0 +1,515 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Command line tool that summarizes the comma separated values written by
+ * DataCollector, for runs too large to open in a spreadsheet.
+ * 
+ * <p>
+ * Usage:
+ * <code>DataCollectorAnalyzer [-threads n] [-chunk mb] input...</code>
+ * 
+ * <p>
+ * Several inputs are read as one run in the order given, such as the files
+ * of a RollingFileSink. Each file is split into chunks of about -chunk
+ * megabytes (default 64) at line boundaries and the chunks are read in
+ * parallel by -threads threads (default one per processor), then the partial
+ * summaries are merged in file order. Rollup rows are ignored.
+ * 
+ * <p>
+ * For each agent the report has the number of rows, decision cycles and
+ * seconds covered and decisions per second, then for each column the total
+ * (for columns that hold the change since the previous row), the mean
+ * weighted by the wall clock time each row covers and the maximum, and
+ * finally the least squares slope of avg msec/dc and wm current against the
+ * decision cycle number, per 1000 cycles. A wall clock or dc num smaller than
+ * the agent's previous row is taken as a collector reset.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class DataCollectorAnalyzer
+{
+    /**
+     * Columns holding the change since the previous row, these get a total.
+     * Names rather than Metrics so the tool runs without JSoar.
+     */
+    static final List<String> DELTA_COLUMNS = Arrays.asList(
+            "kernel msec", "cpu msec", "pf total", "wm additions", "wm removals");
+    
+    /**
+     * Columns that get a trend slope.
+     */
+    static final List<String> TREND_COLUMNS = Arrays.asList(
+            "avg msec/dc", "wm current");
+    
+    private static final long MEGABYTE = 1024 * 1024;
+    
+    private final int threads;
+    private final long chunkBytes;
+    private String[] columnNames;
+    private int wallClockColumn;
+    private int dcColumn;
+    private boolean[] deltaColumns;
+    private int[] trendColumns;
+    
+    public DataCollectorAnalyzer(int threads, long chunkBytes)
+    {
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+    }
+    
+    public static void main(String[] args)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        long chunkMegabytes = 64;
+        List<File> inputs = new ArrayList<File>();
+        
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                if (args[i].equals("-threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-chunk"))
+                    chunkMegabytes = Long.parseLong(args[++i]);
+                else
+                    inputs.add(new File(args[i]));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            usage();
+        }
+        if (inputs.isEmpty() || threads < 1 || chunkMegabytes < 1)
+            usage();
+        
+        try
+        {
+            DataCollectorAnalyzer analyzer = new DataCollectorAnalyzer(threads, chunkMegabytes * MEGABYTE);
+            Map<String, AgentSummary> summaries = analyzer.analyze(inputs);
+            analyzer.print(summaries, System.out);
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: DataCollectorAnalyzer [-threads n] [-chunk mb] input...");
+        System.exit(2);
+    }
+    
+    /**
+     * Read the files as one run.
+     * 
+     * @return Summary of each agent, in the order the agents first appear.
+     */
+    Map<String, AgentSummary> analyze(List<File> inputs) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Map<String, AgentSummary>>> chunks = new ArrayList<Future<Map<String, AgentSummary>>>();
+            for (File input : inputs)
+            {
+                long dataStart = readHeader(input);
+                long length = input.length();
+                for (long start = dataStart; start < length; start += chunkBytes)
+                {
+                    final Chunk chunk = new Chunk(input, start, Math.min(start + chunkBytes, length), start == dataStart);
+                    chunks.add(executor.submit(chunk));
+                }
+            }
+            
+            Map<String, AgentSummary> summaries = new LinkedHashMap<String, AgentSummary>();
+            for (Future<Map<String, AgentSummary>> chunk : chunks)
+            {
+                for (Map.Entry<String, AgentSummary> entry : get(chunk).entrySet())
+                {
+                    AgentSummary summary = summaries.get(entry.getKey());
+                    if (summary == null)
+                    {
+                        summary = new AgentSummary(columnNames.length, trendColumns.length);
+                        summaries.put(entry.getKey(), summary);
+                    }
+                    summary.merge(entry.getValue());
+                }
+            }
+            return summaries;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static <T> T get(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * Read a file's header, checking it against the first file's.
+     * 
+     * @return Offset of the first byte after the header line.
+     */
+    private long readHeader(File input) throws IOException
+    {
+        CsvSampleReader reader = new CsvSampleReader(new BufferedInputStream(new FileInputStream(input), 8192));
+        try
+        {
+            String[] names = reader.getColumnNames();
+            if (columnNames == null)
+            {
+                setColumns(names);
+            }
+            else if (!Arrays.equals(columnNames, names))
+            {
+                throw new IOException(input + " has different columns than the first input");
+            }
+            return reader.getPosition();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    private void setColumns(String[] names) throws IOException
+    {
+        columnNames = names;
+        wallClockColumn = -1;
+        dcColumn = -1;
+        deltaColumns = new boolean[names.length];
+        List<Integer> trends = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; ++i)
+        {
+            if (names[i].equals("wall clock"))
+                wallClockColumn = i;
+            else if (names[i].equals("dc num"))
+                dcColumn = i;
+            deltaColumns[i] = DELTA_COLUMNS.contains(names[i]);
+            if (TREND_COLUMNS.contains(names[i]))
+                trends.add(i);
+        }
+        if (wallClockColumn < 0 || dcColumn < 0)
+            throw new IOException("Input is missing the wall clock or dc num column");
+        trendColumns = new int[trends.size()];
+        for (int i = 0; i < trendColumns.length; ++i)
+        {
+            trendColumns[i] = trends.get(i);
+        }
+    }
+    
+    /**
+     * Reads the rows that start in a byte range of a file.
+     */
+    private final class Chunk implements Callable<Map<String, AgentSummary>>
+    {
+        private final File input;
+        private final long start;
+        private final long end;
+        private final boolean atRow;
+        
+        Chunk(File input, long start, long end, boolean atRow)
+        {
+            this.input = input;
+            this.start = start;
+            this.end = end;
+            this.atRow = atRow;
+        }
+        
+        @Override
+        public Map<String, AgentSummary> call() throws IOException
+        {
+            Map<String, AgentSummary> summaries = new LinkedHashMap<String, AgentSummary>();
+            
+            // Start one byte early and skip through the next line separator,
+            // a row starting exactly at start belongs to this chunk
+            long from = atRow ? start : start - 1;
+            InputStream in = new FileInputStream(input);
+            skipFully(in, from);
+            CsvSampleReader reader = new CsvSampleReader(in, columnNames);
+            try
+            {
+                if (!atRow && !reader.skipLine())
+                    return summaries;
+                
+                String lastAgent = null;
+                AgentSummary summary = null;
+                double[] values = new double[columnNames.length];
+                while (reader.next())
+                {
+                    if (from + reader.getRowPosition() >= end)
+                        break;
+                    if (reader.isRollup())
+                        continue;
+                    
+                    String agent = reader.getAgent();
+                    if (agent != lastAgent)
+                    {
+                        summary = summaries.get(agent);
+                        if (summary == null)
+                        {
+                            summary = new AgentSummary(columnNames.length, trendColumns.length);
+                            summaries.put(agent, summary);
+                        }
+                        lastAgent = agent;
+                    }
+                    for (int i = 0; i < values.length; ++i)
+                    {
+                        values[i] = reader.getDouble(i);
+                    }
+                    summary.add(values, wallClockColumn, dcColumn, trendColumns);
+                }
+                return summaries;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+    }
+    
+    private static void skipFully(InputStream in, long bytes) throws IOException
+    {
+        while (bytes > 0)
+        {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0)
+                throw new IOException("Unexpected end of file");
+            bytes -= skipped;
+        }
+    }
+    
+    /**
+     * Statistics for one agent over a run of consecutive rows. Summaries of
+     * consecutive runs merge into the summary of the whole run.
+     */
+    static final class AgentSummary
+    {
+        long rows;
+        double seconds;         // sum of row weights
+        long decisions;
+        final double[] totals;
+        final double[] weighted;    // value times seconds covered
+        final double[] maxima;
+        
+        // least squares sums against dc num, by trend column
+        long trendRows;
+        double sumX;
+        double sumXX;
+        final double[] sumY;
+        final double[] sumXY;
+        
+        // the first row of a run is weighted once the previous run is known
+        double firstWallClock;
+        long firstDc;
+        double[] firstValues;
+        double lastWallClock;
+        long lastDc;
+        
+        AgentSummary(int columns, int trends)
+        {
+            totals = new double[columns];
+            weighted = new double[columns];
+            maxima = new double[columns];
+            Arrays.fill(maxima, Double.NEGATIVE_INFINITY);
+            sumY = new double[trends];
+            sumXY = new double[trends];
+        }
+        
+        void add(double[] values, int wallClockColumn, int dcColumn, int[] trendColumns)
+        {
+            double wallClock = values[wallClockColumn];
+            long dc = (long) values[dcColumn];
+            if (rows == 0)
+            {
+                firstWallClock = wallClock;
+                firstDc = dc;
+                firstValues = values.clone();
+            }
+            else
+            {
+                addWeighted(values, wallClock, dc);
+            }
+            lastWallClock = wallClock;
+            lastDc = dc;
+            ++rows;
+            
+            for (int i = 0; i < values.length; ++i)
+            {
+                double value = values[i];
+                if (Double.isNaN(value))
+                    continue;
+                totals[i] += value;
+                if (value > maxima[i])
+                    maxima[i] = value;
+            }
+            
+            ++trendRows;
+            sumX += dc;
+            sumXX += (double) dc * dc;
+            for (int t = 0; t < trendColumns.length; ++t)
+            {
+                double y = values[trendColumns[t]];
+                sumY[t] += y;
+                sumXY[t] += dc * y;
+            }
+        }
+        
+        private void addWeighted(double[] values, double wallClock, long dc)
+        {
+            double seconds = wallClock >= lastWallClock ? wallClock - lastWallClock : wallClock;
+            decisions += dc >= lastDc ? dc - lastDc : dc;
+            this.seconds += seconds;
+            for (int i = 0; i < values.length; ++i)
+            {
+                if (!Double.isNaN(values[i]))
+                    weighted[i] += values[i] * seconds;
+            }
+        }
+        
+        /**
+         * Append the statistics of the rows that follow this summary's rows.
+         * An empty summary is treated as the start of the run, with the
+         * clock and decision cycle at zero.
+         */
+        void merge(AgentSummary next)
+        {
+            if (next.rows == 0)
+                return;
+            if (rows == 0)
+            {
+                lastWallClock = 0;
+                lastDc = 0;
+                firstWallClock = next.firstWallClock;
+                firstDc = next.firstDc;
+                firstValues = next.firstValues;
+            }
+            addWeighted(next.firstValues, next.firstWallClock, next.firstDc);
+            
+            rows += next.rows;
+            seconds += next.seconds;
+            decisions += next.decisions;
+            for (int i = 0; i < totals.length; ++i)
+            {
+                totals[i] += next.totals[i];
+                weighted[i] += next.weighted[i];
+                maxima[i] = Math.max(maxima[i], next.maxima[i]);
+            }
+            trendRows += next.trendRows;
+            sumX += next.sumX;
+            sumXX += next.sumXX;
+            for (int t = 0; t < sumY.length; ++t)
+            {
+                sumY[t] += next.sumY[t];
+                sumXY[t] += next.sumXY[t];
+            }
+            lastWallClock = next.lastWallClock;
+            lastDc = next.lastDc;
+        }
+        
+        double getMean(int column)
+        {
+            return seconds > 0 ? weighted[column] / seconds : Double.NaN;
+        }
+        
+        double getDecisionsPerSecond()
+        {
+            return seconds > 0 ? decisions / seconds : Double.NaN;
+        }
+        
+        /**
+         * @return Least squares slope of a trend column against dc num.
+         */
+        double getSlope(int trend)
+        {
+            double n = trendRows;
+            double denominator = n * sumXX - sumX * sumX;
+            if (trendRows < 2 || denominator == 0)
+                return Double.NaN;
+            return (n * sumXY[trend] - sumX * sumY[trend]) / denominator;
+        }
+    }
+    
+    void print(Map<String, AgentSummary> summaries, PrintStream out)
+    {
+        for (Map.Entry<String, AgentSummary> entry : summaries.entrySet())
+        {
+            AgentSummary summary = entry.getValue();
+            out.printf("%s: %d rows, %d decisions in %.3f sec, %.1f dc/sec%n", entry.getKey(), summary.rows,
+                    summary.decisions, summary.seconds, summary.getDecisionsPerSecond());
+            out.printf("  %-24s %16s %16s %16s%n", "column", "total", "mean", "max");
+            for (int i = 0; i < columnNames.length; ++i)
+            {
+                if (i == wallClockColumn || i == dcColumn)
+                    continue;
+                out.printf("  %-24s %16s %16.6f %16.6f%n", columnNames[i],
+                        deltaColumns[i] ? String.format("%.6f", summary.totals[i]) : "",
+                        summary.getMean(i), summary.maxima[i]);
+            }
+            for (int t = 0; t < trendColumns.length; ++t)
+            {
+                out.printf("  trend %s: %+.6f per 1000 dc%n", columnNames[trendColumns[t]], 1000 * summary.getSlope(t));
+            }
+            out.println();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Command line tool that compares two runs written by DataCollector as comma
+ * separated values and fails when the candidate run is significantly slower
+ * or larger than the baseline, for catching performance regressions from
+ * rule or JSoar changes in automated runs.
+ * 
+ * <p>
+ * Usage:
+ * <code>DataCollectorCompare [-threshold column=percent]... [-alpha p] [-strict] baseline candidate</code>
+ * 
+ * <p>
+ * Rows are aligned by agent name and dc num, so both runs should collect on
+ * the same decision cycle period. Rows after a collector reset (dc num going
+ * down) are ignored. For each agent and each compared column present in both
+ * files the paired differences are tested with the Wilcoxon signed-rank test,
+ * which needs no assumption about the distribution and is not thrown off by a
+ * few very slow periods. A column regresses when the candidate's median is
+ * more than its threshold percent (default 5) above the baseline's median and
+ * the test's p-value is below alpha (default 0.01).
+ * 
+ * <p>
+ * Each agent's settings (learning, memory modules and any additional
+ * settings) are compared too, ignoring the time stamp; differences are
+ * reported, and with -strict they count as a failure.
+ * 
+ * <p>
+ * Exits with 0 if nothing regressed, 1 if something did, 2 for bad arguments
+ * and 3 if a file could not be read.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class DataCollectorCompare
+{
+    /**
+     * Compared columns. Counts and sizes compare like times, more is worse.
+     */
+    static final String[] COLUMNS = {
+        "avg msec/dc", "average msec/pf", "wm current", "smem retrieves", "smem queries", "smem stores",
+    };
+    
+    static final double DEFAULT_THRESHOLD = 5;
+    static final double DEFAULT_ALPHA = 0.01;
+    
+    /**
+     * Fewer aligned rows than this are reported but never fail.
+     */
+    static final int MIN_PAIRS = 10;
+    
+    private final Map<String, Double> thresholds = new HashMap<String, Double>();
+    private double alpha = DEFAULT_ALPHA;
+    private boolean strict;
+    
+    public static void main(String[] args)
+    {
+        DataCollectorCompare compare = new DataCollectorCompare();
+        String baseline = null;
+        String candidate = null;
+        
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                if (args[i].equals("-threshold"))
+                {
+                    String spec = args[++i];
+                    int equals = spec.lastIndexOf('=');
+                    compare.setThreshold(spec.substring(0, equals), Double.parseDouble(spec.substring(equals + 1)));
+                }
+                else if (args[i].equals("-alpha"))
+                    compare.alpha = Double.parseDouble(args[++i]);
+                else if (args[i].equals("-strict"))
+                    compare.strict = true;
+                else if (baseline == null)
+                    baseline = args[i];
+                else if (candidate == null)
+                    candidate = args[i];
+                else
+                    usage();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            usage();
+        }
+        if (candidate == null)
+            usage();
+        
+        int failures;
+        try
+        {
+            failures = compare.compare(read(new File(baseline)), read(new File(candidate)), System.out);
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(3);
+            return;
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: DataCollectorCompare [-threshold column=percent]... [-alpha p] [-strict] baseline candidate");
+        System.exit(2);
+    }
+    
+    /**
+     * @param column
+     *            One of COLUMNS.
+     * @param percent
+     *            Largest allowed increase of the median, in percent.
+     */
+    void setThreshold(String column, double percent)
+    {
+        if (!Arrays.asList(COLUMNS).contains(column))
+            throw new IllegalArgumentException("Not a compared column: " + column);
+        thresholds.put(column, percent);
+    }
+    
+    private double getThreshold(String column)
+    {
+        Double threshold = thresholds.get(column);
+        return threshold != null ? threshold : DEFAULT_THRESHOLD;
+    }
+    
+    /**
+     * The compared columns of one agent's rows, in dc num order.
+     */
+    static final class AgentRun
+    {
+        String settings;
+        int rows;
+        long[] dcs = new long[256];
+        final double[][] values = new double[COLUMNS.length][256];
+        boolean reset;
+        
+        void add(long dc, CsvSampleReader reader, int[] columns)
+        {
+            if (rows > 0 && dc <= dcs[rows - 1])
+                reset = true;
+            if (reset)
+                return;
+            if (rows == dcs.length)
+            {
+                dcs = Arrays.copyOf(dcs, rows * 2);
+                for (int c = 0; c < values.length; ++c)
+                {
+                    values[c] = Arrays.copyOf(values[c], rows * 2);
+                }
+            }
+            dcs[rows] = dc;
+            for (int c = 0; c < columns.length; ++c)
+            {
+                values[c][rows] = columns[c] >= 0 ? reader.getDouble(columns[c]) : Double.NaN;
+            }
+            ++rows;
+        }
+    }
+    
+    /**
+     * Read the agents' rows of a file, ignoring rollup rows.
+     */
+    static Map<String, AgentRun> read(File input) throws IOException
+    {
+        Map<String, AgentRun> runs = new LinkedHashMap<String, AgentRun>();
+        CsvSampleReader reader = new CsvSampleReader(new BufferedInputStream(new FileInputStream(input), 64 * 1024));
+        try
+        {
+            int dcColumn = reader.getColumnIndex("dc num");
+            if (dcColumn < 0)
+                throw new IOException(input + " has no dc num column");
+            int[] columns = new int[COLUMNS.length];
+            for (int c = 0; c < COLUMNS.length; ++c)
+            {
+                columns[c] = reader.getColumnIndex(COLUMNS[c]);
+            }
+            
+            String lastAgent = null;
+            AgentRun run = null;
+            while (reader.next())
+            {
+                if (reader.isRollup())
+                    continue;
+                String agent = reader.getAgent();
+                if (agent != lastAgent)
+                {
+                    run = runs.get(agent);
+                    if (run == null)
+                    {
+                        run = new AgentRun();
+                        runs.put(agent, run);
+                    }
+                    lastAgent = agent;
+                }
+                if (run.settings == null)
+                    run.settings = reader.getSettings();
+                run.add(reader.getLong(dcColumn), reader, columns);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return runs;
+    }
+    
+    /**
+     * Compare the agents found in both runs and print a report.
+     * 
+     * @return Number of regressions, counting settings differences if
+     *         strict.
+     */
+    int compare(Map<String, AgentRun> baseline, Map<String, AgentRun> candidate, PrintStream out)
+    {
+        int failures = 0;
+        for (Map.Entry<String, AgentRun> entry : baseline.entrySet())
+        {
+            String agent = entry.getKey();
+            AgentRun base = entry.getValue();
+            AgentRun cand = candidate.get(agent);
+            if (cand == null)
+            {
+                out.printf("%s: not in candidate run%n%n", agent);
+                continue;
+            }
+            
+            int[] baseRows = new int[Math.min(base.rows, cand.rows)];
+            int[] candRows = new int[baseRows.length];
+            int pairs = align(base, cand, baseRows, candRows);
+            out.printf("%s: %d aligned rows%n", agent, pairs);
+            
+            String baseSettings = withoutTimeStamp(base.settings);
+            String candSettings = withoutTimeStamp(cand.settings);
+            if (baseSettings != null && candSettings != null && !baseSettings.equals(candSettings))
+            {
+                out.printf("  settings differ: baseline %s, candidate %s%n", baseSettings, candSettings);
+                if (strict)
+                    ++failures;
+            }
+            
+            out.printf("  %-18s %16s %16s %10s %10s  %s%n", "column", "baseline median", "candidate median",
+                    "change", "p", "result");
+            double[] b = new double[pairs];
+            double[] c = new double[pairs];
+            double[] d = new double[pairs];
+            for (int column = 0; column < COLUMNS.length; ++column)
+            {
+                int n = 0;
+                for (int i = 0; i < pairs; ++i)
+                {
+                    double bv = base.values[column][baseRows[i]];
+                    double cv = cand.values[column][candRows[i]];
+                    if (Double.isNaN(bv) || Double.isNaN(cv))
+                        continue;
+                    b[n] = bv;
+                    c[n] = cv;
+                    d[n] = cv - bv;
+                    ++n;
+                }
+                if (n == 0)
+                    continue;
+                
+                double baseMedian = median(b, n);
+                double candMedian = median(c, n);
+                double change = baseMedian != 0 ? 100 * (candMedian - baseMedian) / Math.abs(baseMedian)
+                        : (candMedian > 0 ? Double.POSITIVE_INFINITY : 0);
+                double p = signedRankP(d, n);
+                
+                String result;
+                if (n < MIN_PAIRS)
+                {
+                    result = "too few rows";
+                }
+                else if (change > getThreshold(COLUMNS[column]) && p < alpha)
+                {
+                    result = "REGRESSION";
+                    ++failures;
+                }
+                else if (change < -getThreshold(COLUMNS[column]) && p < alpha)
+                {
+                    result = "improved";
+                }
+                else
+                {
+                    result = "ok";
+                }
+                out.printf("  %-18s %16.6f %16.6f %+9.2f%% %10.4f  %s%n", COLUMNS[column], baseMedian, candMedian,
+                        change, p, result);
+            }
+            out.println();
+        }
+        for (String agent : candidate.keySet())
+        {
+            if (!baseline.containsKey(agent))
+                out.printf("%s: not in baseline run%n%n", agent);
+        }
+        return failures;
+    }
+    
+    /**
+     * Pair up rows with the same dc num.
+     * 
+     * @return Number of pairs.
+     */
+    static int align(AgentRun base, AgentRun cand, int[] baseRows, int[] candRows)
+    {
+        int pairs = 0;
+        int i = 0;
+        int j = 0;
+        while (i < base.rows && j < cand.rows)
+        {
+            if (base.dcs[i] < cand.dcs[j])
+            {
+                ++i;
+            }
+            else if (base.dcs[i] > cand.dcs[j])
+            {
+                ++j;
+            }
+            else
+            {
+                baseRows[pairs] = i++;
+                candRows[pairs] = j++;
+                ++pairs;
+            }
+        }
+        return pairs;
+    }
+    
+    /**
+     * The settings column starts with the time the agent was first
+     * collected, drop it and the quotes.
+     */
+    static String withoutTimeStamp(String settings)
+    {
+        if (settings == null)
+            return null;
+        String s = settings;
+        if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\""))
+            s = s.substring(1, s.length() - 1);
+        int comma = s.indexOf(',');
+        return comma >= 0 ? s.substring(comma + 1) : "";
+    }
+    
+    /**
+     * Median of the first n values, which are reordered.
+     */
+    static double median(double[] values, int n)
+    {
+        Arrays.sort(values, 0, n);
+        return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+    }
+    
+    /**
+     * Two sided p-value of the Wilcoxon signed-rank test that the first n
+     * differences are centered on zero, using the normal approximation with
+     * the correction for ties. Zero differences are dropped. The differences
+     * are reordered.
+     */
+    static double signedRankP(double[] differences, int n)
+    {
+        // sort by magnitude, zeros first
+        Double[] sorted = new Double[n];
+        for (int i = 0; i < n; ++i)
+        {
+            sorted[i] = differences[i];
+        }
+        Arrays.sort(sorted, new Comparator<Double>() {
+            @Override
+            public int compare(Double a, Double b)
+            {
+                return Double.compare(Math.abs(a), Math.abs(b));
+            }
+        });
+        
+        int first = 0;
+        while (first < n && sorted[first] == 0)
+            ++first;
+        double m = n - first;
+        if (m == 0)
+            return 1;
+        
+        double positiveRanks = 0;
+        double tieCorrection = 0;
+        for (int i = first; i < n;)
+        {
+            int end = i + 1;
+            while (end < n && Math.abs(sorted[end]) == Math.abs(sorted[i]))
+                ++end;
+            // ranks of i..end-1 are averaged, ranks start at 1
+            double rank = (i - first + 1 + end - first) / 2.0;
+            for (int k = i; k < end; ++k)
+            {
+                if (sorted[k] > 0)
+                    positiveRanks += rank;
+            }
+            double t = end - i;
+            tieCorrection += t * t * t - t;
+            i = end;
+        }
+        
+        double mean = m * (m + 1) / 4.0;
+        double variance = m * (m + 1) * (2 * m + 1) / 24.0 - tieCorrection / 48.0;
+        if (variance <= 0)
+            return 1;
+        double z = Math.abs(positiveRanks - mean) / Math.sqrt(variance);
+        return Math.min(1, 2 * (1 - normalCdf(z)));
+    }
+    
+    /**
+     * Standard normal distribution function, Abramowitz and Stegun 26.2.17,
+     * absolute error below 7.5e-8.
+     */
+    static double normalCdf(double z)
+    {
+        if (z < 0)
+            return 1 - normalCdf(-z);
+        double t = 1 / (1 + 0.2316419 * z);
+        double poly = t * (0.319381530 + t * (-0.356563782 + t * (1.781477937 + t * (-1.821255978 + t * 1.330274429))));
+        return 1 - Math.exp(-z * z / 2) / Math.sqrt(2 * Math.PI) * poly;
+    }
+}
@@ -11,7 +11,6 @@ import org.jsoar.kernel.SoarException;
 import org.jsoar.kernel.SoarProperties;
 import org.jsoar.kernel.events.RunLoopEvent;
 import org.jsoar.runtime.ThreadedAgent;
-import org.jsoar.util.commands.SoarCommands;
 import org.jsoar.util.events.SoarEvent;
 import org.jsoar.util.events.SoarEventListener;
 import org.jsoar.util.properties.PropertyChangeEvent;
@@ -27,10 +26,10 @@ public class DataCollectorExample
 	    threaded.setName("soar");
 	    threaded.getPrinter().pushWriter(new OutputStreamWriter(System.out));	
 	    
-        // TODO: Need a custom agent that generates some more interesting stats
+        // Load one of the bundled workloads, this one churns working memory
 	    try
         {
-            SoarCommands.source(threaded.getInterpreter(), "http://soar.googlecode.com/svn/trunk/Agents/Arithmetic/arithmetic.soar");
+            Workload.WM_CHURN.source(threaded.getInterpreter());
         }
         catch (SoarException e1)
         {
@@ -69,6 +68,10 @@ public class DataCollectorExample
             @Override
             public void onEvent(SoarEvent event)
             {
+                // Call onDecisionCycle for each agent every cycle to track
+                // the slowest and busiest cycles
+                dc.onDecisionCycle(threaded.getAgent());
+                
                 // Call onUpdateEvent once (for all agents) per cycle so
                 // it can keep track of decision cycles
                 if (dc.onUpdateEvent())
@@ -86,7 +89,9 @@ public class DataCollectorExample
         // To recap:
         //  * call onStart on system start
         //  * call onStop on system stop, collect one last time
+        //  * call onDecisionCycle on update event for each agent
         //  * call onUpdateEvent on update event, and, if it returns true, collect for each agent
+        // or attach ThreadedAgents to a CollectorService, which does all of this
         PropertyManager props = threaded.getProperties();
         props.addListener(SoarProperties.IS_RUNNING, runningHandler);
         threaded.getEvents().addListener(RunLoopEvent.class, updateHandler);
@@ -0,0 +1,167 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Command line tool that converts a binary file written by DataCollector (see
+ * setBinaryOutputFile) back into the comma separated values layout that
+ * setOutputStream produces.
+ * 
+ * <p>
+ * Usage: <code>DataCollectorExport [-dc n | -time seconds] input [output]</code>
+ * 
+ * <p>
+ * Output goes to standard out if no output file is given. The -dc and -time
+ * options skip rows before the given decision cycle or wall clock time using
+ * the file's index.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class DataCollectorExport
+{
+    public static void main(String[] args)
+    {
+        long fromDc = -1;
+        double fromTime = -1;
+        String input = null;
+        String output = null;
+        
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                if (args[i].equals("-dc"))
+                    fromDc = Long.parseLong(args[++i]);
+                else if (args[i].equals("-time"))
+                    fromTime = Double.parseDouble(args[++i]);
+                else if (input == null)
+                    input = args[i];
+                else if (output == null)
+                    output = args[i];
+                else
+                    usage();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            usage();
+        }
+        if (input == null)
+            usage();
+        
+        try
+        {
+            OutputStream out = output != null ? new FileOutputStream(output) : System.out;
+            try
+            {
+                export(new File(input), out, fromDc, fromTime);
+            }
+            finally
+            {
+                if (output != null)
+                    out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    private static void usage()
+    {
+        System.err.println("Usage: DataCollectorExport [-dc n | -time seconds] input [output]");
+        System.exit(2);
+    }
+    
+    /**
+     * Write the rows of a binary file as csv, starting with the header line.
+     * Rows with a decision cycle before fromDc or a wall clock before fromTime
+     * are skipped, pass negative values to export everything.
+     */
+    static void export(File input, OutputStream out, long fromDc, double fromTime) throws IOException
+    {
+        BinarySampleReader reader = new BinarySampleReader(input);
+        try
+        {
+            OutputStream bout = new BufferedOutputStream(out, 8192);
+            CsvRowEncoder encoder = new CsvRowEncoder();
+            
+            int dcColumn = -1;
+            int wallClockColumn = -1;
+            encoder.append("agent,");
+            for (int i = 0; i < reader.getColumnCount(); ++i)
+            {
+                String name = reader.getColumnName(i);
+                if (name.equals("dc num"))
+                    dcColumn = i;
+                else if (name.equals("wall clock"))
+                    wallClockColumn = i;
+                encoder.append(name).append(',');
+            }
+            encoder.append("settings").newLine();
+            bout.write(encoder.buffer(), 0, encoder.length());
+            
+            if (fromDc >= 0)
+                reader.seekDc(fromDc);
+            else if (fromTime >= 0)
+                reader.seekWallClock(fromTime);
+            
+            while (reader.next())
+            {
+                if (fromDc >= 0 && dcColumn >= 0 && reader.getLong(dcColumn) < fromDc)
+                    continue;
+                if (fromTime >= 0 && wallClockColumn >= 0 && reader.getDouble(wallClockColumn) < fromTime)
+                    continue;
+                
+                encoder.reset().append(reader.getAgent()).append(',');
+                for (int i = 0; i < reader.getColumnCount(); ++i)
+                {
+                    if (reader.isDoubleColumn(i))
+                        encoder.append(reader.getDouble(i));
+                    else
+                        encoder.append(reader.getLong(i));
+                    encoder.append(',');
+                }
+                String settings = reader.getSettings();
+                if (settings != null)
+                    encoder.append(settings);
+                encoder.newLine();
+                bout.write(encoder.buffer(), 0, encoder.length());
+            }
+            bout.flush();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
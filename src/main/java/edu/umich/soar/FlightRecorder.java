@@ -0,0 +1,172 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Writes a detailed record of a single decision cycle when it takes longer or
+ * changes more wmes than a threshold, for catching slow cycles that are
+ * averaged away in the periodic rows. Fed by onDecisionCycle with values it
+ * already measures; between triggers the only work is storing the cycle's
+ * duration in a small ring of recent cycles.
+ * 
+ * <p>
+ * Records are csv lines, see HEADER. Phase times are -1 unless phase timing
+ * is enabled. The recent cycle durations are oldest first, separated by
+ * spaces, ending with the triggering cycle; -1 marks a cycle that was not
+ * timed, such as the first after a start. Records are rate limited per agent:
+ * triggers within the minimum interval of the agent's previous record are
+ * only counted, in the suppressed field of the next record. Each record is
+ * flushed since they are rare and most useful when a run ends badly.
+ * 
+ * <p>
+ * Only touched from the thread calling onDecisionCycle for the agent.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class FlightRecorder
+{
+    private static final Log logger = LogFactory.getLog(FlightRecorder.class);
+    
+    static final String HEADER = "agent,dc num,time,cycle usec,wme changes,firings,wm current,goal depth,"
+            + "input usec,propose usec,decide usec,apply usec,output usec,suppressed,recent cycle usec";
+    
+    private final AgentState state;
+    private final OutputStream out;
+    private final long cycleMicros;
+    private final long wmeChanges;
+    private final long minIntervalNanos;
+    private final long[] recent;
+    private int recentNext;
+    private int recentCount;
+    private long lastRecordNanos;
+    private boolean recorded;
+    private long suppressed;
+    private final CsvRowEncoder encoder = new CsvRowEncoder();
+    
+    /**
+     * @param cycleMicros
+     *            Record cycles longer than this, 0 to not trigger on time.
+     * @param wmeChanges
+     *            Record cycles with more wme changes than this, 0 to not
+     *            trigger on changes.
+     * @param historyCycles
+     *            Number of recent cycle durations in each record.
+     * @param minIntervalMillis
+     *            Least time between two records of the agent.
+     */
+    FlightRecorder(AgentState state, OutputStream out, long cycleMicros, long wmeChanges, int historyCycles,
+            long minIntervalMillis)
+    {
+        this.state = state;
+        this.out = out;
+        this.cycleMicros = cycleMicros;
+        this.wmeChanges = wmeChanges;
+        this.minIntervalNanos = minIntervalMillis * 1000000;
+        this.recent = new long[Math.max(1, historyCycles)];
+    }
+    
+    /**
+     * @param usec
+     *            The cycle's wall time, -1 if it was not measured.
+     */
+    void onCycle(long dc, long usec, long changes, long firings, long wm, long now)
+    {
+        recent[recentNext] = usec;
+        if (++recentNext == recent.length)
+            recentNext = 0;
+        if (recentCount < recent.length)
+            ++recentCount;
+        
+        boolean slow = cycleMicros > 0 && usec > cycleMicros;
+        boolean busy = wmeChanges > 0 && changes > wmeChanges;
+        if (!slow && !busy)
+            return;
+        
+        if (recorded && now - lastRecordNanos < minIntervalNanos)
+        {
+            ++suppressed;
+            return;
+        }
+        recorded = true;
+        lastRecordNanos = now;
+        
+        try
+        {
+            write(dc, usec, changes, firings, wm);
+        }
+        catch (IOException e)
+        {
+            logger.error("Error writing flight record", e);
+        }
+        suppressed = 0;
+    }
+    
+    private void write(long dc, long usec, long changes, long firings, long wm) throws IOException
+    {
+        encoder.reset().append(state.agent.getName()).append(',').append(dc).append(',');
+        encoder.append(System.currentTimeMillis()).append(',').append(usec).append(',');
+        encoder.append(changes).append(',').append(firings).append(',').append(wm).append(',');
+        encoder.append(state.agent.getGoalStack().size()).append(',');
+        
+        PhaseTimer phases = state.phaseTimer;
+        for (int i = 0; i < PhaseTimer.PHASES; ++i)
+        {
+            encoder.append(phases != null ? phases.cycleNanos[i] / 1000 : -1).append(',');
+        }
+        encoder.append(suppressed).append(',');
+        
+        int index = recentNext - recentCount;
+        if (index < 0)
+            index += recent.length;
+        for (int i = 0; i < recentCount; ++i)
+        {
+            if (i > 0)
+                encoder.append(' ');
+            encoder.append(recent[index]);
+            if (++index == recent.length)
+                index = 0;
+        }
+        encoder.newLine();
+        
+        synchronized (out)
+        {
+            out.write(encoder.buffer(), 0, encoder.length());
+            out.flush();
+        }
+    }
+    
+    void reset()
+    {
+        recentNext = 0;
+        recentCount = 0;
+        recorded = false;
+        suppressed = 0;
+    }
+}
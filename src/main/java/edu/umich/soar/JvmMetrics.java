@@ -0,0 +1,281 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoar.kernel.Agent;
+
+/**
+ * <p>
+ * Optional metrics about the JVM the agents run in, for telling garbage
+ * collection and allocation apart from kernel time. None are collected by
+ * default, add them with DataCollector.addMetric or all of them with
+ * setMetrics.
+ * 
+ * <p>
+ * Columns:
+ * <table>
+ * <tr><th>Header</th><th>Description and Units</th><th>Notes</th></tr>
+ * <tr><td>gc count</td><td>garbage collections, all collectors</td>
+ * <td>resets on each call to collect</td></tr>
+ * <tr><td>gc msec</td><td>time spent in garbage collection in milliseconds,
+ * all collectors</td><td>resets on each call to collect</td></tr>
+ * <tr><td>heap after gc bytes</td><td>heap used after the most recent
+ * collection of each heap pool</td><td></td></tr>
+ * <tr><td>thread allocated bytes</td><td>bytes allocated by the agent's
+ * thread</td><td>resets on each call to collect, -1 if the JVM can not
+ * measure it or the thread has ended</td></tr>
+ * <tr><td>thread cpu msec</td><td>cpu time of the agent's thread in
+ * milliseconds</td><td>resets on each call to collect, -1 if the JVM can not
+ * measure it or the thread has ended</td></tr>
+ * </table>
+ * 
+ * <p>
+ * Garbage collection is process wide, so with several agents each agent's row
+ * reports the collections since that agent's previous row. The thread columns
+ * read the thread the agent last ran a decision cycle on, as recorded by
+ * DataCollector.onDecisionCycle, so collect may be called from any thread.
+ * Without onDecisionCycle calls they fall back to the thread calling collect.
+ * A row read from a different thread than the agent's previous row reports 0
+ * for the thread columns and starts counting from there.
+ * 
+ * <p>
+ * The management beans are looked up once; sampling is a handful of calls
+ * into the JVM with no allocation, except heap after gc which reads a usage
+ * object from each pool.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public final class JvmMetrics
+{
+    public static final Metric GC_COUNT = new Metric("gc count", false) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new GcSampler(false);
+        }
+    };
+    
+    public static final Metric GC_MSEC = new Metric("gc msec", false) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new GcSampler(true);
+        }
+    };
+    
+    public static final Metric HEAP_AFTER_GC = new Metric("heap after gc bytes", false) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    long used = 0;
+                    for (MemoryPoolMXBean pool : HEAP_POOLS)
+                    {
+                        MemoryUsage usage = pool.getCollectionUsage();
+                        if (usage != null)
+                            used += usage.getUsed();
+                    }
+                    return used;
+                }
+            };
+        }
+    };
+    
+    public static final Metric THREAD_ALLOCATED_BYTES = new Metrics.StateMetric("thread allocated bytes", false) {
+        @Override
+        Sampler createSampler(AgentState state)
+        {
+            return new ThreadSampler(state, false);
+        }
+    };
+    
+    public static final Metric THREAD_CPU_MSEC = new Metrics.StateMetric("thread cpu msec", true) {
+        @Override
+        Sampler createSampler(AgentState state)
+        {
+            return new ThreadSampler(state, true);
+        }
+    };
+    
+    private static final Metric[] ALL = {
+        GC_COUNT, GC_MSEC, HEAP_AFTER_GC, THREAD_ALLOCATED_BYTES, THREAD_CPU_MSEC,
+    };
+    
+    private static final GarbageCollectorMXBean[] COLLECTORS;
+    private static final MemoryPoolMXBean[] HEAP_POOLS;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean ALLOCATION;
+    
+    static
+    {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        COLLECTORS = collectors.toArray(new GarbageCollectorMXBean[collectors.size()]);
+        
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+        }
+        HEAP_POOLS = heapPools.toArray(new MemoryPoolMXBean[heapPools.size()]);
+        
+        // allocation counting is a HotSpot extension
+        com.sun.management.ThreadMXBean allocation = null;
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+        {
+            allocation = (com.sun.management.ThreadMXBean) THREADS;
+            if (!allocation.isThreadAllocatedMemorySupported())
+                allocation = null;
+            else if (!allocation.isThreadAllocatedMemoryEnabled())
+                allocation.setThreadAllocatedMemoryEnabled(true);
+        }
+        ALLOCATION = allocation;
+        
+        if (THREADS.isThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled())
+            THREADS.setThreadCpuTimeEnabled(true);
+    }
+    
+    private JvmMetrics()
+    {
+    }
+    
+    /**
+     * @return A new, modifiable list of all JVM metrics.
+     */
+    public static List<Metric> all()
+    {
+        return new ArrayList<Metric>(Arrays.asList(ALL));
+    }
+    
+    /**
+     * Change in the collection count or time of all collectors since the
+     * previous row.
+     */
+    private static final class GcSampler extends Metric.Sampler
+    {
+        private final boolean time;
+        private long last;
+        
+        GcSampler(boolean time)
+        {
+            this.time = time;
+        }
+        
+        @Override
+        public long sampleLong(long deltaDc)
+        {
+            long total = 0;
+            for (GarbageCollectorMXBean collector : COLLECTORS)
+            {
+                long value = time ? collector.getCollectionTime() : collector.getCollectionCount();
+                if (value > 0)
+                    total += value; // -1 if undefined
+            }
+            long delta = total - last;
+            last = total;
+            return delta;
+        }
+        
+        @Override
+        public void reset()
+        {
+            last = 0;
+        }
+    }
+    
+    /**
+     * Change in the agent thread's allocated bytes or cpu time since the
+     * previous row.
+     */
+    private static final class ThreadSampler extends Metric.Sampler
+    {
+        private final AgentState state;
+        private final boolean cpu;
+        private long threadId = -1;
+        private long last;
+        
+        ThreadSampler(AgentState state, boolean cpu)
+        {
+            this.state = state;
+            this.cpu = cpu;
+        }
+        
+        private long read(long id)
+        {
+            // both return -1 if the thread has died
+            if (cpu)
+                return THREADS.isThreadCpuTimeSupported() ? THREADS.getThreadCpuTime(id) : -1;
+            return ALLOCATION != null ? ALLOCATION.getThreadAllocatedBytes(id) : -1;
+        }
+        
+        private long sample()
+        {
+            long id = state.threadId;
+            if (id == -1)
+                id = Thread.currentThread().getId();
+            long value = read(id);
+            if (value < 0)
+                return -1;
+            
+            if (threadId != id && threadId != -1)
+                last = value;   // moved to another thread, start over
+            threadId = id;
+            long delta = value - last;
+            last = value;
+            return delta;
+        }
+        
+        @Override
+        public long sampleLong(long deltaDc)
+        {
+            return sample();
+        }
+        
+        @Override
+        public double sampleDouble(long deltaDc)
+        {
+            long nanos = sample();
+            return nanos < 0 ? -1 : nanos / 1000000.0;
+        }
+        
+        @Override
+        public void reset()
+        {
+            threadId = -1;
+            last = 0;
+        }
+    }
+}
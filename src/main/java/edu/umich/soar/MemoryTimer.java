@@ -0,0 +1,215 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.epmem.EpisodicMemoryStatistics;
+import org.jsoar.kernel.events.OutputEvent;
+import org.jsoar.kernel.events.PhaseEvents;
+import org.jsoar.kernel.smem.SemanticMemoryStatistics;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.events.SoarEventManager;
+import org.jsoar.util.properties.PropertyProvider;
+
+/**
+ * <p>
+ * Measures the time an agent spends in episodic and semantic memory. JSoar
+ * does not keep timers for its memory modules and has no hooks around their
+ * retrieve, query and store calls, but it runs them at the end of the output
+ * phase after the output callbacks. This listener marks the end of the output
+ * callbacks (or the start of the output phase if there is no output) and the
+ * end of the phase, and times the window in between with System.nanoTime.
+ * 
+ * <p>
+ * The window is charged to each module whose statistics changed in it:
+ * semantic memory when a retrieve, query or store was counted, episodic
+ * memory when an episode was stored or a query was counted. Episodic memory
+ * stores an episode every cycle under its default policy, so it is usually
+ * charged every cycle it is enabled. When both modules did work in the same
+ * cycle each is charged the whole window, since the kernel does not say how
+ * it was shared; the two columns then overlap rather than add up.
+ * 
+ * <p>
+ * The marks must come after every other output listener, or their time is
+ * charged to memory. moveMarksLast re-registers them at the end of the
+ * listener lists and is called by DataCollector.onStart, so listeners
+ * registered before the run starts are not counted.
+ * 
+ * <p>
+ * Installed on an agent's event manager by DataCollector.setMemoryTiming.
+ * Events arrive on the agent thread, the same thread that calls collect.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class MemoryTimer implements SoarEventListener
+{
+    private final Agent agent;
+    private final PropertyProvider<Long> dcCount;
+    private final EpisodicMemoryStatistics epmemStats;
+    private final SemanticMemoryStatistics smemStats;
+    
+    /**
+     * Start of the window: the output phase starting and each output event.
+     */
+    private final SoarEventListener mark = new SoarEventListener()
+    {
+        @Override
+        public void onEvent(SoarEvent event)
+        {
+            markNanos = System.nanoTime();
+        }
+    };
+    
+    private long markNanos;
+    private long lastEpmemTime;
+    private long lastEpmemQueries;
+    private long lastSmemOps;
+    
+    long epmemNanos;            // running total, reinitialized in reset()
+    long epmemMaxCycle;         // reinitialized in resetPeriod()
+    long epmemMaxNanos;         // reinitialized in resetPeriod()
+    long smemNanos;             // running total, reinitialized in reset()
+    long smemMaxCycle;          // reinitialized in resetPeriod()
+    long smemMaxNanos;          // reinitialized in resetPeriod()
+    
+    MemoryTimer(Agent agent, PropertyProvider<Long> dcCount, EpisodicMemoryStatistics epmemStats,
+            SemanticMemoryStatistics smemStats)
+    {
+        this.agent = agent;
+        this.dcCount = dcCount;
+        this.epmemStats = epmemStats;
+        this.smemStats = smemStats;
+        reset();
+    }
+    
+    void install()
+    {
+        agent.getEvents().addListener(PhaseEvents.AfterOutput.class, this);
+        addMarks(agent.getEvents());
+    }
+    
+    void uninstall()
+    {
+        SoarEventManager events = agent.getEvents();
+        events.removeListener(PhaseEvents.AfterOutput.class, this);
+        removeMarks(events);
+    }
+    
+    /**
+     * Re-register the marks after any output listeners added since.
+     */
+    void moveMarksLast()
+    {
+        SoarEventManager events = agent.getEvents();
+        removeMarks(events);
+        addMarks(events);
+    }
+    
+    private void addMarks(SoarEventManager events)
+    {
+        events.addListener(PhaseEvents.BeforeOutput.class, mark);
+        events.addListener(OutputEvent.class, mark);
+    }
+    
+    private void removeMarks(SoarEventManager events)
+    {
+        events.removeListener(PhaseEvents.BeforeOutput.class, mark);
+        events.removeListener(OutputEvent.class, mark);
+    }
+
+    /**
+     * End of the output phase, close the window.
+     */
+    @Override
+    public void onEvent(SoarEvent event)
+    {
+        if (markNanos == 0)
+            return;
+        final long nanos = System.nanoTime() - markNanos;
+        markNanos = 0;
+        
+        if (epmemStats != null)
+        {
+            long time = epmemStats.getTime();
+            long queries = epmemStats.getQueries();
+            if (time != lastEpmemTime || queries != lastEpmemQueries)
+            {
+                epmemNanos += nanos;
+                if (nanos > epmemMaxNanos)
+                {
+                    epmemMaxNanos = nanos;
+                    epmemMaxCycle = dcCount.get();
+                }
+            }
+            lastEpmemTime = time;
+            lastEpmemQueries = queries;
+        }
+        
+        if (smemStats != null)
+        {
+            long ops = getSmemOps();
+            if (ops != lastSmemOps)
+            {
+                smemNanos += nanos;
+                if (nanos > smemMaxNanos)
+                {
+                    smemMaxNanos = nanos;
+                    smemMaxCycle = dcCount.get();
+                }
+            }
+            lastSmemOps = ops;
+        }
+    }
+    
+    private long getSmemOps()
+    {
+        return smemStats.getRetrieves() + smemStats.getQueries() + smemStats.getStores();
+    }
+    
+    /**
+     * Clear values that cover a single collection period.
+     */
+    void resetPeriod()
+    {
+        epmemMaxCycle = 0;
+        epmemMaxNanos = 0;
+        smemMaxCycle = 0;
+        smemMaxNanos = 0;
+    }
+    
+    void reset()
+    {
+        markNanos = 0;
+        epmemNanos = 0;
+        smemNanos = 0;
+        if (epmemStats != null)
+        {
+            lastEpmemTime = epmemStats.getTime();
+            lastEpmemQueries = epmemStats.getQueries();
+        }
+        if (smemStats != null)
+            lastSmemOps = getSmemOps();
+        resetPeriod();
+    }
+}
@@ -0,0 +1,154 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import org.jsoar.kernel.Agent;
+
+/**
+ * <p>
+ * A column of data collected by DataCollector. Each metric has a unique
+ * column name and a type, and creates a Sampler for every agent it is
+ * collected from. The sampler keeps whatever per-agent baseline it needs, for
+ * example the previous total of a counter so it can report the change since
+ * the last row.
+ * 
+ * <p>
+ * The built in metrics are in Metrics. To add a column, extend this class and
+ * pass it to DataCollector.addMetric:
+ * 
+ * <pre>
+ * dc.addMetric(new Metric("goal depth", false) {
+ *     protected Sampler createSampler(final Agent agent) {
+ *         return new Sampler() {
+ *             public long sampleLong(long deltaDc) {
+ *                 return agent.getGoalStack().size();
+ *             }
+ *         };
+ *     }
+ * });
+ * </pre>
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public abstract class Metric
+{
+    private final String name;
+    private final boolean floatingPoint;
+    
+    /**
+     * @param name
+     *            Column header, must be unique and must not contain commas or
+     *            double quotes.
+     * @param floatingPoint
+     *            True if the column holds doubles, written with six decimals,
+     *            false if it holds longs.
+     */
+    protected Metric(String name, boolean floatingPoint)
+    {
+        if (name == null)
+            throw new NullPointerException("name");
+        if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0)
+            throw new IllegalArgumentException("Invalid metric name: " + name);
+        this.name = name;
+        this.floatingPoint = floatingPoint;
+    }
+    
+    /**
+     * @return The column header.
+     */
+    public final String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return true if the column holds doubles, false if it holds longs.
+     */
+    public final boolean isFloatingPoint()
+    {
+        return floatingPoint;
+    }
+    
+    /**
+     * <p>
+     * Create the sampler reading this metric from an agent. Called once per
+     * agent when it is first collected with this metric enabled, on the
+     * thread calling collect. Look up anything the sampler needs here so that
+     * sampling is cheap.
+     * 
+     * @param agent
+     *            The agent the sampler will read.
+     * @return A new sampler.
+     */
+    protected abstract Sampler createSampler(Agent agent);
+    
+    /**
+     * The collector calls this so that built in metrics can read its per-agent
+     * state.
+     */
+    Sampler createSampler(AgentState state)
+    {
+        return createSampler(state.agent);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    /**
+     * <p>
+     * Reads one metric from one agent. Override sampleLong or sampleDouble to
+     * match the metric's type. Called from collect on the agent's thread.
+     */
+    public static abstract class Sampler
+    {
+        /**
+         * @param deltaDc
+         *            Decision cycles since the agent's previous row.
+         * @return The value for the current row of a long metric.
+         */
+        public long sampleLong(long deltaDc)
+        {
+            return 0;
+        }
+        
+        /**
+         * @param deltaDc
+         *            Decision cycles since the agent's previous row.
+         * @return The value for the current row of a double metric.
+         */
+        public double sampleDouble(long deltaDc)
+        {
+            return 0;
+        }
+        
+        /**
+         * Clear any baseline values, called from DataCollector.reset.
+         */
+        public void reset()
+        {
+        }
+    }
+}
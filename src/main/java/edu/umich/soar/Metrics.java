@@ -0,0 +1,750 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Phase;
+import org.jsoar.kernel.SoarProperties;
+import org.jsoar.util.properties.PropertyKey;
+import org.jsoar.util.properties.PropertyProvider;
+import org.jsoar.util.timing.ExecutionTimer;
+
+/**
+ * <p>
+ * The built in metrics, in their default column order. See DataCollector for
+ * a description of each column.
+ * 
+ * <p>
+ * Metrics that report a change since the previous row keep the previous
+ * total per agent and report the total on the first row after a reset, just
+ * like the counters they read.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public final class Metrics
+{
+    public static final Metric KERNEL_MSEC = new Metric("kernel msec", true) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new TimerDelta(agent.getTotalKernelTimer(), false);
+        }
+    };
+    
+    public static final Metric AVG_MSEC_PER_DC = new Metric("avg msec/dc", true) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new TimerDelta(agent.getTotalKernelTimer(), true);
+        }
+    };
+    
+    public static final Metric CPU_MSEC = new Metric("cpu msec", true) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            return new TimerDelta(agent.getTotalCpuTimer(), false);
+        }
+    };
+    
+    public static final Metric PF_TOTAL = new CounterMetric("pf total", SoarProperties.PRODUCTION_FIRING_COUNT);
+    
+    public static final Metric AVG_MSEC_PER_PF = new Metric("average msec/pf", true) {
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            final ExecutionTimer timer = agent.getTotalKernelTimer();
+            final PropertyProvider<Long> pfCount = agent.getProperties().getProvider(SoarProperties.PRODUCTION_FIRING_COUNT);
+            return new Sampler() {
+                private double lastTime;
+                private long lastPf;
+                
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    double time = timer.getTotalSeconds();
+                    double deltaTime = time - lastTime;
+                    lastTime = time;
+                    long pf = pfCount.get();
+                    long deltaPf = pf - lastPf;
+                    lastPf = pf;
+                    return deltaPf > 0 ? deltaTime / deltaPf : 0;
+                }
+                
+                @Override
+                public void reset()
+                {
+                    lastTime = 0;
+                    lastPf = 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric WM_CURRENT = new Metric("wm current", false) {
+        @Override
+        protected Sampler createSampler(final Agent agent)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return agent.getNumWmesInRete();
+                }
+            };
+        }
+    };
+    
+    public static final Metric WM_MEAN = new WmMetric("wm mean", true) {
+        @Override
+        double value(AgentState state)
+        {
+            return state.wmMean;
+        }
+    };
+    
+    public static final Metric WM_MAX = new WmMetric("wm max", false) {
+        @Override
+        double value(AgentState state)
+        {
+            return state.wmMax;
+        }
+    };
+    
+    public static final Metric WM_ADDITIONS = new CounterMetric("wm additions", SoarProperties.WME_ADDITION_COUNT);
+    
+    public static final Metric WM_REMOVALS = new CounterMetric("wm removals", SoarProperties.WME_REMOVAL_COUNT);
+    
+    public static final Metric MAX_DC_TIME_CYCLE = new StateMetric("max dc time cycle", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxTimeCycle;
+                }
+            };
+        }
+    };
+    
+    public static final Metric MAX_DC_TIME_VALUE = new StateMetric("max dc time value", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxTimeUsec;
+                }
+            };
+        }
+    };
+    
+    public static final Metric MAX_DC_CHANGES_CYCLE = new StateMetric("max dc changes cycle", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxChangesCycle;
+                }
+            };
+        }
+    };
+    
+    public static final Metric MAX_DC_CHANGES_VALUE = new StateMetric("max dc changes value", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxChangesValue;
+                }
+            };
+        }
+    };
+    
+    public static final Metric MAX_DC_PF_CYCLE = new StateMetric("max dc pf cycle", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxPfCycle;
+                }
+            };
+        }
+    };
+    
+    public static final Metric MAX_DC_PF_VALUE = new StateMetric("max dc pf value", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.maxPfValue;
+                }
+            };
+        }
+    };
+    
+    public static final Metric DC_MSEC_P50 = new PercentileMetric("dc msec p50", 50);
+    public static final Metric DC_MSEC_P90 = new PercentileMetric("dc msec p90", 90);
+    public static final Metric DC_MSEC_P99 = new PercentileMetric("dc msec p99", 99);
+    public static final Metric DC_MSEC_P999 = new PercentileMetric("dc msec p99.9", 99.9);
+    public static final Metric DC_MSEC_MAX = new PercentileMetric("dc msec max", 100);
+    
+    public static final Metric EPMEM_TIME = new StateMetric("epmem time", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.epmemNanos / 1000000.0 : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_MAX_TIME_CYCLE = new StateMetric("epmem max time cycle", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.epmemMaxCycle : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_MAX_TIME_VALUE = new StateMetric("epmem max time value", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.epmemMaxNanos / 1000000.0 : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_AND_SMEM_BYTES = new StateMetric("epmem and smem bytes", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    // shared database
+                    return state.epmemStats != null ? state.epmemStats.getMemoryUsage() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_QUERIES = new StateMetric("epmem queries", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.epmemStats != null ? state.epmemStats.getQueries() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_STORES = new StateMetric("epmem stores", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    // Time == Stores (more or less)
+                    return state.epmemStats != null ? state.epmemStats.getTime() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric EPMEM_TIME_PER_DC = new StateMetric("epmem time per dc", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new MemoryTimePerDc(state, true);
+        }
+    };
+    
+    public static final Metric SMEM_TIME = new StateMetric("smem time", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.smemNanos / 1000000.0 : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_MAX_TIME_CYCLE = new StateMetric("smem max time cycle", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.smemMaxCycle : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_MAX_TIME_VALUE = new StateMetric("smem max time value", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    MemoryTimer timer = state.memoryTimer;
+                    return timer != null ? timer.smemMaxNanos / 1000000.0 : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_RETRIEVES = new StateMetric("smem retrieves", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.smemStats != null ? state.smemStats.getRetrieves() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_QUERIES = new StateMetric("smem queries", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.smemStats != null ? state.smemStats.getQueries() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_STORES = new StateMetric("smem stores", false) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return state.smemStats != null ? state.smemStats.getStores() : 0;
+                }
+            };
+        }
+    };
+    
+    public static final Metric SMEM_TIME_PER_DC = new StateMetric("smem time per dc", true) {
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new MemoryTimePerDc(state, false);
+        }
+    };
+    
+    public static final Metric WM_MIN = new WmMetric("wm min", false) {
+        @Override
+        double value(AgentState state)
+        {
+            return state.wmMin;
+        }
+    };
+    
+    public static final Metric WM_VARIANCE = new WmMetric("wm variance", true) {
+        @Override
+        double value(AgentState state)
+        {
+            return state.wmCycles > 1 ? state.wmSquares / (state.wmCycles - 1) : 0;
+        }
+        
+        @Override
+        double fallback(long current)
+        {
+            return 0;
+        }
+    };
+    
+    public static final Metric INPUT_MSEC = new PhaseMetric("input msec", Phase.INPUT, false);
+    public static final Metric INPUT_MAX_MSEC = new PhaseMetric("input max msec", Phase.INPUT, true);
+    public static final Metric PROPOSE_MSEC = new PhaseMetric("propose msec", Phase.PROPOSE, false);
+    public static final Metric PROPOSE_MAX_MSEC = new PhaseMetric("propose max msec", Phase.PROPOSE, true);
+    public static final Metric DECIDE_MSEC = new PhaseMetric("decide msec", Phase.DECISION, false);
+    public static final Metric DECIDE_MAX_MSEC = new PhaseMetric("decide max msec", Phase.DECISION, true);
+    public static final Metric APPLY_MSEC = new PhaseMetric("apply msec", Phase.APPLY, false);
+    public static final Metric APPLY_MAX_MSEC = new PhaseMetric("apply max msec", Phase.APPLY, true);
+    public static final Metric OUTPUT_MSEC = new PhaseMetric("output msec", Phase.OUTPUT, false);
+    public static final Metric OUTPUT_MAX_MSEC = new PhaseMetric("output max msec", Phase.OUTPUT, true);
+    
+    private static final Metric[] DEFAULTS = {
+        KERNEL_MSEC, AVG_MSEC_PER_DC, CPU_MSEC, PF_TOTAL, AVG_MSEC_PER_PF,
+        WM_CURRENT, WM_MEAN, WM_MAX, WM_ADDITIONS, WM_REMOVALS,
+        MAX_DC_TIME_CYCLE, MAX_DC_TIME_VALUE, MAX_DC_CHANGES_CYCLE, MAX_DC_CHANGES_VALUE, MAX_DC_PF_CYCLE, MAX_DC_PF_VALUE,
+        DC_MSEC_P50, DC_MSEC_P90, DC_MSEC_P99, DC_MSEC_P999, DC_MSEC_MAX,
+        EPMEM_TIME, EPMEM_MAX_TIME_CYCLE, EPMEM_MAX_TIME_VALUE, EPMEM_AND_SMEM_BYTES, EPMEM_QUERIES, EPMEM_STORES, EPMEM_TIME_PER_DC,
+        SMEM_TIME, SMEM_MAX_TIME_CYCLE, SMEM_MAX_TIME_VALUE, SMEM_RETRIEVES, SMEM_QUERIES, SMEM_STORES, SMEM_TIME_PER_DC,
+        // appended so that the columns before them keep their positions
+        WM_MIN, WM_VARIANCE,
+    };
+    
+    private static final Metric[] PHASES = {
+        INPUT_MSEC, INPUT_MAX_MSEC, PROPOSE_MSEC, PROPOSE_MAX_MSEC, DECIDE_MSEC, DECIDE_MAX_MSEC,
+        APPLY_MSEC, APPLY_MAX_MSEC, OUTPUT_MSEC, OUTPUT_MAX_MSEC,
+    };
+    
+    private Metrics()
+    {
+    }
+    
+    /**
+     * @return A new, modifiable list of the metrics a DataCollector starts
+     *         with, in column order.
+     */
+    public static List<Metric> defaults()
+    {
+        return new ArrayList<Metric>(Arrays.asList(DEFAULTS));
+    }
+    
+    /**
+     * @return A new, modifiable list of the phase timing metrics, which are
+     *         not collected by default. They need DataCollector.setPhaseTiming.
+     */
+    public static List<Metric> phases()
+    {
+        return new ArrayList<Metric>(Arrays.asList(PHASES));
+    }
+    
+    /**
+     * @param name
+     *            Column header of a built in metric.
+     * @return The metric, or null if there is no built in metric with that
+     *         name.
+     */
+    public static Metric forName(String name)
+    {
+        for (Metric metric : DEFAULTS)
+        {
+            if (metric.getName().equals(name))
+                return metric;
+        }
+        for (Metric metric : PHASES)
+        {
+            if (metric.getName().equals(name))
+                return metric;
+        }
+        return null;
+    }
+    
+    /**
+     * <p>
+     * A metric that needs the collector's per-agent state, such as the
+     * period maxima fed by onDecisionCycle. DataCollector passes the state it
+     * keeps for the agent. Sampled through the Agent overload, the metric gets
+     * a state of its own that nothing feeds per cycle, so values kept by
+     * onDecisionCycle or the timing listeners read as they would before the
+     * first cycle, while values read from the agent are filled in as usual.
+     */
+    static abstract class StateMetric extends Metric
+    {
+        StateMetric(String name, boolean floatingPoint)
+        {
+            super(name, floatingPoint);
+        }
+        
+        @Override
+        protected final Sampler createSampler(Agent agent)
+        {
+            return createSampler(new AgentState(agent));
+        }
+        
+        @Override
+        abstract Sampler createSampler(AgentState state);
+    }
+    
+    /**
+     * Working memory size statistic over the decision cycles of the period,
+     * kept by onDecisionCycle. Periods without onDecisionCycle calls report
+     * the current size instead.
+     */
+    private static abstract class WmMetric extends StateMetric
+    {
+        WmMetric(String name, boolean floatingPoint)
+        {
+            super(name, floatingPoint);
+        }
+        
+        abstract double value(AgentState state);
+        
+        double fallback(long current)
+        {
+            return current;
+        }
+        
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            final Agent agent = state.agent;
+            return new Sampler() {
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    return (long) sampleDouble(deltaDc);
+                }
+                
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    if (state.wmCycles == 0)
+                        return fallback(agent.getNumWmesInRete());
+                    return value(state);
+                }
+            };
+        }
+    }
+    
+    /**
+     * Change in a counter property since the previous row.
+     */
+    private static final class CounterMetric extends Metric
+    {
+        private final PropertyKey<Long> key;
+        
+        CounterMetric(String name, PropertyKey<Long> key)
+        {
+            super(name, false);
+            this.key = key;
+        }
+        
+        @Override
+        protected Sampler createSampler(Agent agent)
+        {
+            final PropertyProvider<Long> counter = agent.getProperties().getProvider(key);
+            return new Sampler() {
+                private long last;
+                
+                @Override
+                public long sampleLong(long deltaDc)
+                {
+                    long value = counter.get();
+                    long delta = value - last;
+                    last = value;
+                    return delta;
+                }
+                
+                @Override
+                public void reset()
+                {
+                    last = 0;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Change in a kernel timer since the previous row, optionally per decision
+     * cycle.
+     */
+    private static final class TimerDelta extends Metric.Sampler
+    {
+        private final ExecutionTimer timer;
+        private final boolean perDc;
+        private double last;
+        
+        TimerDelta(ExecutionTimer timer, boolean perDc)
+        {
+            this.timer = timer;
+            this.perDc = perDc;
+        }
+        
+        @Override
+        public double sampleDouble(long deltaDc)
+        {
+            // getTotalSeconds returns seconds, divide to get msec
+            double time = timer.getTotalSeconds();
+            double delta = time - last;
+            last = time;
+            if (!perDc)
+                return delta;
+            return deltaDc > 0 ? delta / deltaDc : 0;
+        }
+        
+        @Override
+        public void reset()
+        {
+            last = 0;
+        }
+    }
+    
+    /**
+     * Decision cycle duration percentile for the period, from the histogram
+     * fed by onDecisionCycle. 100 is the maximum.
+     */
+    private static final class PercentileMetric extends StateMetric
+    {
+        private final double percentile;
+        
+        PercentileMetric(String name, double percentile)
+        {
+            super(name, true);
+            this.percentile = percentile;
+        }
+        
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    final CycleHistogram cycleTimes = state.cycleTimes;
+                    long nanos = percentile < 100 ? cycleTimes.getValueAtPercentile(percentile) : cycleTimes.getMax();
+                    return nanos / 1000000.0;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Time spent in a phase during the period, or the longest single run of
+     * the phase, in milliseconds. Phases run once per decision cycle.
+     */
+    private static final class PhaseMetric extends StateMetric
+    {
+        private final int phase;
+        private final boolean max;
+        
+        PhaseMetric(String name, Phase phase, boolean max)
+        {
+            super(name, true);
+            this.phase = phase.ordinal();
+            this.max = max;
+        }
+        
+        @Override
+        Sampler createSampler(final AgentState state)
+        {
+            return new Sampler() {
+                @Override
+                public double sampleDouble(long deltaDc)
+                {
+                    PhaseTimer timer = state.phaseTimer;
+                    if (timer == null)
+                        return 0;
+                    return (max ? timer.maxNanos[phase] : timer.periodNanos[phase]) / 1000000.0;
+                }
+            };
+        }
+    }
+    
+    /**
+     * Memory module time since the previous row per decision cycle.
+     */
+    private static final class MemoryTimePerDc extends Metric.Sampler
+    {
+        private final AgentState state;
+        private final boolean epmem;
+        private long lastNanos;
+        
+        MemoryTimePerDc(AgentState state, boolean epmem)
+        {
+            this.state = state;
+            this.epmem = epmem;
+        }
+        
+        @Override
+        public double sampleDouble(long deltaDc)
+        {
+            MemoryTimer timer = state.memoryTimer;
+            long nanos = timer == null ? 0 : epmem ? timer.epmemNanos : timer.smemNanos;
+            long delta = nanos - lastNanos;
+            if (delta < 0)
+                delta = nanos;  // timing was turned off and on again
+            lastNanos = nanos;
+            return deltaDc > 0 ? delta / 1000000.0 / deltaDc : 0;
+        }
+        
+        @Override
+        public void reset()
+        {
+            lastNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ * Publishes the newest row of each agent for monitoring: as a JMX MBean and,
+ * optionally, in the Prometheus text format over HTTP on a local port.
+ * 
+ * <p>
+ * Both read the rows the collector keeps in memory (see
+ * DataCollector.setHistorySize), never the agents, so scrapes from other
+ * threads do not disturb the agent threads. If the collector keeps no rows it
+ * is set to keep one per agent. Values are as fresh as the last collect.
+ * 
+ * <p>
+ * The MBean is named edu.umich.soar:type=DataCollector,name=&lt;name&gt; and
+ * has a read only attribute "&lt;agent&gt;.&lt;column&gt;" for every column of
+ * every agent, plus "Agents" with the agent names. Prometheus metrics are
+ * the column headers prefixed with "jsoar_", with runs of characters other
+ * than letters and digits replaced by an underscore, labeled by agent.
+ * Infinite and NaN values are written as +Inf, -Inf and NaN.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class MetricsExporter
+{
+    private static final Log logger = LogFactory.getLog(MetricsExporter.class);
+    
+    private final DataCollector collector;
+    private final String name;
+    private ObjectName objectName;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    
+    /**
+     * @param collector
+     *            The collector to publish.
+     * @param name
+     *            Distinguishes the MBeans of several collectors.
+     */
+    public MetricsExporter(DataCollector collector, String name)
+    {
+        this.collector = collector;
+        this.name = name;
+        if (collector.getHistorySize() == 0)
+            collector.setHistorySize(1);
+    }
+    
+    /**
+     * <p>
+     * Register the MBean with the platform MBean server.
+     * 
+     * @throws JMException
+     *             If the name is taken or invalid.
+     */
+    public synchronized void registerMBean() throws JMException
+    {
+        if (objectName != null)
+            return;
+        ObjectName objectName = new ObjectName("edu.umich.soar:type=DataCollector,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new CollectorMBean(), objectName);
+        this.objectName = objectName;
+    }
+    
+    /**
+     * <p>
+     * Serve the Prometheus text format at http://127.0.0.1:port/metrics. The
+     * server only listens on the loopback interface.
+     * 
+     * @param port
+     *            Port to listen on, 0 for any free port.
+     * @return The port listened on.
+     * @throws IOException
+     *             If the server cannot be started.
+     */
+    public synchronized int startHttpServer(int port) throws IOException
+    {
+        if (server != null)
+            return server.getAddress().getPort();
+        
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    byte[] body = renderPrometheus().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        serverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "DataCollector metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+        this.server = server;
+        logger.info("Serving metrics on port " + server.getAddress().getPort());
+        return server.getAddress().getPort();
+    }
+    
+    /**
+     * <p>
+     * Stop the HTTP server and unregister the MBean.
+     */
+    public synchronized void close()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            serverExecutor.shutdown();
+            server = null;
+            serverExecutor = null;
+        }
+        if (objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e)
+            {
+                logger.error("Error unregistering " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+    
+    /**
+     * @return The newest row of every agent.
+     */
+    private List<SampleRow> latestRows()
+    {
+        List<SampleRow> rows = new ArrayList<SampleRow>();
+        for (SampleHistory history : collector.getHistories())
+        {
+            SampleRow row = history.latest();
+            if (row != null)
+                rows.add(row);
+        }
+        return rows;
+    }
+    
+    String renderPrometheus()
+    {
+        List<SampleRow> rows = latestRows();
+        StringBuilder sb = new StringBuilder();
+        List<String> written = new ArrayList<String>();
+        for (SampleRow first : rows)
+        {
+            for (String column : first.getColumnNames())
+            {
+                // one block per column, agents collected with other metrics
+                // may not have it
+                if (written.contains(column))
+                    continue;
+                written.add(column);
+                
+                String metric = prometheusName(column);
+                sb.append("# TYPE ").append(metric).append(" gauge\n");
+                for (SampleRow row : rows)
+                {
+                    if (!row.hasColumn(column))
+                        continue;
+                    sb.append(metric).append("{agent=\"").append(escapeLabel(row.getAgent())).append("\"} ");
+                    sb.append(prometheusValue(row.getValue(column))).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+    
+    static String prometheusName(String column)
+    {
+        StringBuilder sb = new StringBuilder("jsoar_");
+        boolean underscore = true;
+        for (int i = 0; i < column.length(); ++i)
+        {
+            char c = column.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))
+            {
+                sb.append(Character.toLowerCase(c));
+                underscore = false;
+            }
+            else if (!underscore)
+            {
+                sb.append('_');
+                underscore = true;
+            }
+        }
+        if (underscore)
+            sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+    
+    /**
+     * The text format spells the non-finite values differently than Java.
+     */
+    static String prometheusValue(double value)
+    {
+        if (Double.isNaN(value))
+            return "NaN";
+        if (value == Double.POSITIVE_INFINITY)
+            return "+Inf";
+        if (value == Double.NEGATIVE_INFINITY)
+            return "-Inf";
+        return Double.toString(value);
+    }
+    
+    private static String escapeLabel(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    /**
+     * Attributes are computed from the rows at each call, so agents and
+     * columns can change while registered.
+     */
+    private class CollectorMBean implements DynamicMBean
+    {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            List<SampleRow> rows = latestRows();
+            if (attribute.equals("Agents"))
+            {
+                String[] agents = new String[rows.size()];
+                for (int i = 0; i < agents.length; ++i)
+                {
+                    agents[i] = rows.get(i).getAgent();
+                }
+                return agents;
+            }
+            for (SampleRow row : rows)
+            {
+                String prefix = row.getAgent() + ".";
+                if (attribute.startsWith(prefix))
+                {
+                    String column = attribute.substring(prefix.length());
+                    if (row.hasColumn(column))
+                        return row.getValue(column);
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+        
+        @Override
+        public AttributeList getAttributes(String[] attributes)
+        {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+            {
+                try
+                {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                }
+                catch (AttributeNotFoundException e)
+                {
+                    // skipped, as the interface specifies
+                }
+            }
+            return list;
+        }
+        
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            attributes.add(new MBeanAttributeInfo("Agents", String[].class.getName(), "Agent names", true, false, false));
+            for (SampleRow row : latestRows())
+            {
+                for (String column : row.getColumnNames())
+                {
+                    attributes.add(new MBeanAttributeInfo(row.getAgent() + "." + column, "double", column + " of agent " + row.getAgent(), true, false, false));
+                }
+            }
+            return new MBeanInfo(MetricsExporter.class.getName(), "Newest DataCollector row of each agent",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+        
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("Read only: " + attribute.getName());
+        }
+        
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+        
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Phase;
+import org.jsoar.kernel.events.AbstractPhaseEvent;
+import org.jsoar.kernel.events.PhaseEvents;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+import org.jsoar.util.events.SoarEventManager;
+
+/**
+ * <p>
+ * Measures the wall time an agent spends in each phase of the decision cycle
+ * from the before and after phase events. The input and output phases include
+ * the agent's input and output callbacks, which is usually where environment
+ * time goes.
+ * 
+ * <p>
+ * Handling an event is a clock read and a few array updates, without
+ * allocation. The listeners are only installed while phase timing is enabled
+ * with DataCollector.setPhaseTiming. Events arrive on the agent thread, the
+ * same thread that calls collect.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class PhaseTimer implements SoarEventListener
+{
+    private static final Class<?>[] EVENTS = {
+        PhaseEvents.BeforeInput.class, PhaseEvents.AfterInput.class,
+        PhaseEvents.BeforeProposal.class, PhaseEvents.AfterProposal.class,
+        PhaseEvents.BeforeDecision.class, PhaseEvents.AfterDecision.class,
+        PhaseEvents.BeforeApply.class, PhaseEvents.AfterApply.class,
+        PhaseEvents.BeforeOutput.class, PhaseEvents.AfterOutput.class,
+    };
+    
+    static final int PHASES = Phase.values().length;
+    private static final int INPUT = Phase.INPUT.ordinal();
+    
+    private final Agent agent;
+    private final long[] startNanos = new long[PHASES];
+    final long[] periodNanos = new long[PHASES];    // reinitialized in resetPeriod()
+    final long[] maxNanos = new long[PHASES];       // reinitialized in resetPeriod()
+    final long[] cycleNanos = new long[PHASES];     // current or last cycle
+    
+    PhaseTimer(Agent agent)
+    {
+        this.agent = agent;
+    }
+    
+    @SuppressWarnings("unchecked")
+    void install()
+    {
+        SoarEventManager events = agent.getEvents();
+        for (Class<?> event : EVENTS)
+        {
+            events.addListener((Class<? extends SoarEvent>) event, this);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    void uninstall()
+    {
+        SoarEventManager events = agent.getEvents();
+        for (Class<?> event : EVENTS)
+        {
+            events.removeListener((Class<? extends SoarEvent>) event, this);
+        }
+    }
+    
+    @Override
+    public void onEvent(SoarEvent event)
+    {
+        final long now = System.nanoTime();
+        final AbstractPhaseEvent phaseEvent = (AbstractPhaseEvent) event;
+        final int phase = phaseEvent.getPhase().ordinal();
+        if (phaseEvent.isBefore())
+        {
+            if (phase == INPUT)
+            {
+                // a new cycle, phases it skips stay 0
+                for (int i = 0; i < PHASES; ++i)
+                {
+                    cycleNanos[i] = 0;
+                }
+            }
+            startNanos[phase] = now;
+            return;
+        }
+        
+        // no start if timing was enabled in the middle of the phase
+        if (startNanos[phase] == 0)
+            return;
+        final long nanos = now - startNanos[phase];
+        startNanos[phase] = 0;
+        cycleNanos[phase] = nanos;
+        periodNanos[phase] += nanos;
+        if (nanos > maxNanos[phase])
+            maxNanos[phase] = nanos;
+    }
+    
+    /**
+     * Clear values that cover a single collection period.
+     */
+    void resetPeriod()
+    {
+        for (int i = 0; i < PHASES; ++i)
+        {
+            periodNanos[i] = 0;
+            maxNanos[i] = 0;
+        }
+    }
+    
+    void reset()
+    {
+        for (int i = 0; i < PHASES; ++i)
+        {
+            startNanos[i] = 0;
+            cycleNanos[i] = 0;
+        }
+        resetPeriod();
+    }
+}
@@ -0,0 +1,195 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.Production;
+import org.jsoar.kernel.events.ProductionAddedEvent;
+import org.jsoar.kernel.events.ProductionExcisedEvent;
+import org.jsoar.util.events.SoarEvent;
+import org.jsoar.util.events.SoarEventListener;
+
+/**
+ * <p>
+ * Finds the productions of one agent that fired most often in each collection
+ * period. The agent's productions are kept in an array, in step with its
+ * production manager through the production added and excised events, and
+ * the firing count at the previous update is kept in a long array with the
+ * same index. An update is one pass over the two arrays computing deltas,
+ * keeping the largest in a small sorted array. Nothing is looked up or
+ * copied per period.
+ * 
+ * <p>
+ * An excised production is found by a scan from the end, where chunks and
+ * other recent productions are, and replaced by the last one. A firing count
+ * lower than at the previous update (init-soar) counts from zero.
+ * 
+ * <p>
+ * Only touched from the agent's thread, which is where the events arrive
+ * and where collect is called for it. Call uninstall when done.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class ProductionProfile implements SoarEventListener
+{
+    static final String HEADER = "agent,dc num,rank,production,firings";
+    
+    final int topN;
+    private final Agent agent;
+    private final CsvRowEncoder encoder = new CsvRowEncoder();
+    
+    private Production[] all = new Production[64];
+    private long[] lastCounts = new long[64];
+    private int count;
+    
+    // this period's top productions, by decreasing firings
+    private final Production[] top;
+    private final long[] topFirings;
+    private int topCount;
+    
+    ProductionProfile(Agent agent, int topN)
+    {
+        this.agent = agent;
+        this.topN = topN;
+        this.top = new Production[topN];
+        this.topFirings = new long[topN];
+    }
+    
+    /**
+     * Take the agent's current productions and follow its changes.
+     */
+    void install()
+    {
+        final List<Production> productions = agent.getProductions().getProductions(null);
+        for (int i = 0; i < productions.size(); ++i)
+        {
+            add(productions.get(i));
+        }
+        agent.getEvents().addListener(ProductionAddedEvent.class, this);
+        agent.getEvents().addListener(ProductionExcisedEvent.class, this);
+    }
+    
+    void uninstall()
+    {
+        agent.getEvents().removeListener(ProductionAddedEvent.class, this);
+        agent.getEvents().removeListener(ProductionExcisedEvent.class, this);
+    }
+    
+    @Override
+    public void onEvent(SoarEvent event)
+    {
+        if (event instanceof ProductionAddedEvent)
+            add(((ProductionAddedEvent) event).getProduction());
+        else
+            excise(((ProductionExcisedEvent) event).getProduction());
+    }
+    
+    private void add(Production production)
+    {
+        if (count == all.length)
+        {
+            all = Arrays.copyOf(all, count * 2);
+            lastCounts = Arrays.copyOf(lastCounts, count * 2);
+        }
+        all[count] = production;
+        lastCounts[count] = 0;
+        ++count;
+    }
+    
+    private void excise(Production production)
+    {
+        for (int i = count - 1; i >= 0; --i)
+        {
+            if (all[i] == production)
+            {
+                --count;
+                all[i] = all[count];
+                lastCounts[i] = lastCounts[count];
+                all[count] = null;
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Compute the firings since the previous update and keep the top n.
+     */
+    void update()
+    {
+        topCount = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            final Production production = all[i];
+            long firings = production.getFiringCount();
+            long delta = firings - lastCounts[i];
+            if (delta < 0)
+                delta = firings;
+            lastCounts[i] = firings;
+            if (delta > 0)
+                offer(production, delta);
+        }
+    }
+    
+    private void offer(Production production, long firings)
+    {
+        if (topCount == topN && firings <= topFirings[topCount - 1])
+            return;
+        int i = topCount < topN ? topCount++ : topCount - 1;
+        while (i > 0 && topFirings[i - 1] < firings)
+        {
+            top[i] = top[i - 1];
+            topFirings[i] = topFirings[i - 1];
+            --i;
+        }
+        top[i] = production;
+        topFirings[i] = firings;
+    }
+    
+    /**
+     * Write a line for each of the top productions of the last update.
+     */
+    void write(OutputStream out, String agent, long dc) throws IOException
+    {
+        for (int i = 0; i < topCount; ++i)
+        {
+            encoder.reset().append(agent).append(',').append(dc).append(',').append(i + 1).append(',');
+            // quoted like the settings column
+            encoder.append('"').append(top[i].getName()).append('"').append(',').append(topFirings[i]).newLine();
+            out.write(encoder.buffer(), 0, encoder.length());
+        }
+    }
+    
+    /**
+     * Forget the previous counts, the next update reports total firings.
+     */
+    void reset()
+    {
+        Arrays.fill(lastCounts, 0, count, 0);
+        topCount = 0;
+    }
+}
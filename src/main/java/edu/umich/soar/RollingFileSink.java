@@ -0,0 +1,423 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Writes csv rows to a series of files in a directory, starting a new file
+ * when the current one reaches a size or age limit. Every file starts with
+ * the header line and repeats each agent's settings on that agent's first row
+ * in the file, so each file can be read on its own.
+ * 
+ * <p>
+ * The writing thread only encodes each row and copies it into a shared
+ * buffer, marking where a new file starts. A background thread swaps the
+ * buffer for a spare one and does all the file work: writing the rows,
+ * opening and closing files, and forcing them to disk according to the sync
+ * policy, every syncMillis milliseconds and/or every syncRows rows. Since
+ * nothing is buffered on the writing thread, every row handed over before a
+ * sync is on disk after it. Writing a row never waits for the disk; the
+ * background thread is also woken once enough bytes are waiting.
+ * 
+ * <p>
+ * Errors writing the files are logged on the background thread and thrown
+ * from the next call to write, flush or close.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class RollingFileSink implements SampleSink
+{
+    private static final Log logger = LogFactory.getLog(RollingFileSink.class);
+    
+    /**
+     * Wake the background thread once this many bytes are waiting.
+     */
+    private static final int WRITE_BEHIND_BYTES = 64 * 1024;
+    
+    private final File directory;
+    private final String prefix;
+    private final long maxBytes;
+    private final long maxMillis;
+    private final long syncMillis;
+    private final int syncRows;
+    private final CsvRowEncoder encoder = new CsvRowEncoder();
+    private final Thread ioThread;
+    
+    // only touched by the writing thread
+    private boolean started;
+    private long bytes;
+    private int rowsSinceSync;
+    private String[] agents = new String[4];
+    private String[] settings = new String[4];
+    private boolean[] inSegment = new boolean[4];
+    private int agentCount;
+    
+    // shared with the background thread
+    private final Object lock = new Object();
+    private byte[] pending = new byte[WRITE_BEHIND_BYTES * 2];  // guarded by lock
+    private int pendingLength;                                  // guarded by lock
+    private int[] fileStarts = new int[4];  // guarded by lock, offsets in pending where a new file starts
+    private int fileStartCount;             // guarded by lock
+    private boolean writeRequested;         // guarded by lock
+    private boolean syncRequested;          // guarded by lock
+    private boolean closed;                 // guarded by lock
+    private IOException failure;            // guarded by lock
+    private volatile long segmentStart;
+    private volatile boolean rotateDue;
+    
+    // only touched by the background thread
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+    private FileOutputStream file;
+    private int sequence;
+    
+    /**
+     * @param directory
+     *            Directory to create the files in.
+     * @param prefix
+     *            Start of each file name, followed by a time stamp and
+     *            sequence number.
+     * @param maxBytes
+     *            Start a new file once this many bytes have been written to
+     *            the current one, 0 for no limit.
+     * @param maxMillis
+     *            Start a new file once the current one is this old, 0 for no
+     *            limit.
+     * @param syncMillis
+     *            Force the file to disk this often, 0 to not sync on time.
+     * @param syncRows
+     *            Force the file to disk after this many rows, 0 to not sync on
+     *            row count.
+     */
+    RollingFileSink(File directory, String prefix, long maxBytes, long maxMillis, long syncMillis, int syncRows)
+    {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.syncMillis = syncMillis;
+        this.syncRows = syncRows;
+        
+        this.ioThread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                ioLoop();
+            }
+        }, "DataCollector sync");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+    
+    @Override
+    public void write(Sample sample) throws IOException
+    {
+        if (!started || rotateDue || (maxBytes > 0 && bytes >= maxBytes))
+        {
+            // the file itself is opened by the background thread
+            started = true;
+            rotateDue = false;
+            segmentStart = System.currentTimeMillis();
+            bytes = 0;
+            for (int i = 0; i < agentCount; ++i)
+            {
+                inSegment[i] = false;
+            }
+            encoder.reset().append(sample.layout.header).newLine();
+            hand(true, false);
+        }
+        
+        int agent = agentIndex(sample.agent);
+        if (sample.settings != null)
+            settings[agent] = sample.settings;
+        String rowSettings = null;
+        if (!inSegment[agent])
+        {
+            rowSettings = settings[agent];
+            inSegment[agent] = true;
+        }
+        
+        encoder.encode(sample, rowSettings);
+        boolean sync = syncRows > 0 && ++rowsSinceSync >= syncRows;
+        if (sync)
+            rowsSinceSync = 0;
+        hand(false, sync);
+    }
+    
+    /**
+     * <p>
+     * Asks the background thread to write out the rows handed to it so far
+     * and force them to disk, without waiting for it.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        synchronized (lock)
+        {
+            throwFailure();
+            syncRequested = true;
+            lock.notifyAll();
+        }
+    }
+    
+    /**
+     * <p>
+     * Waits for the background thread to write, force and close the files.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock)
+        {
+            closed = true;
+            lock.notifyAll();
+        }
+        try
+        {
+            ioThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock)
+        {
+            throwFailure();
+        }
+    }
+    
+    /**
+     * Copy the encoder's contents to the pending buffer.
+     * 
+     * @param newFile
+     *            Whether the bytes start a new file.
+     * @param sync
+     *            Whether to ask for a sync right away.
+     */
+    private void hand(boolean newFile, boolean sync) throws IOException
+    {
+        final int length = encoder.length();
+        synchronized (lock)
+        {
+            throwFailure();
+            if (newFile)
+            {
+                if (fileStartCount == fileStarts.length)
+                {
+                    int[] grown = new int[fileStarts.length * 2];
+                    System.arraycopy(fileStarts, 0, grown, 0, fileStartCount);
+                    fileStarts = grown;
+                }
+                fileStarts[fileStartCount++] = pendingLength;
+            }
+            if (pendingLength + length > pending.length)
+            {
+                byte[] grown = new byte[Math.max(pending.length * 2, pendingLength + length)];
+                System.arraycopy(pending, 0, grown, 0, pendingLength);
+                pending = grown;
+            }
+            System.arraycopy(encoder.buffer(), 0, pending, pendingLength, length);
+            pendingLength += length;
+            
+            if (sync)
+                syncRequested = true;
+            else if (pendingLength >= WRITE_BEHIND_BYTES)
+                writeRequested = true;
+            if (sync || writeRequested)
+                lock.notifyAll();
+        }
+        bytes += length;
+    }
+    
+    /**
+     * Rethrow an error from the background thread once. Called with the lock
+     * held.
+     */
+    private void throwFailure() throws IOException
+    {
+        IOException e = failure;
+        if (e != null)
+        {
+            failure = null;
+            throw e;
+        }
+    }
+    
+    private void ioLoop()
+    {
+        byte[] data = new byte[pending.length];
+        int[] starts = new int[fileStarts.length];
+        long lastSync = System.currentTimeMillis();
+        while (true)
+        {
+            boolean exit;
+            boolean sync;
+            int length;
+            int startCount;
+            synchronized (lock)
+            {
+                long wait = syncMillis > 0 ? syncMillis : 1000;
+                if (!writeRequested && !syncRequested && !closed)
+                {
+                    try
+                    {
+                        lock.wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // only closing stops the thread
+                    }
+                }
+                exit = closed;
+                sync = syncRequested;
+                writeRequested = false;
+                syncRequested = false;
+                
+                // trade buffers with the writing thread
+                byte[] swap = pending;
+                pending = data;
+                data = swap;
+                length = pendingLength;
+                pendingLength = 0;
+                int[] swapStarts = fileStarts;
+                fileStarts = starts;
+                starts = swapStarts;
+                startCount = fileStartCount;
+                fileStartCount = 0;
+            }
+            
+            long now = System.currentTimeMillis();
+            if (syncMillis > 0 && now - lastSync >= syncMillis)
+                sync = true;
+            if (maxMillis > 0 && segmentStart != 0 && now - segmentStart >= maxMillis)
+                rotateDue = true;
+            
+            try
+            {
+                int position = 0;
+                for (int i = 0; i <= startCount; ++i)
+                {
+                    int end = i < startCount ? starts[i] : length;
+                    if (end > position && file != null)
+                        file.write(data, position, end - position);
+                    position = end;
+                    if (i < startCount)
+                        openNext();
+                }
+                
+                if (file != null && (sync || exit))
+                {
+                    file.getChannel().force(false);
+                    lastSync = now;
+                }
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+            
+            if (exit)
+            {
+                if (file != null)
+                {
+                    try
+                    {
+                        file.close();
+                    }
+                    catch (IOException e)
+                    {
+                        fail(e);
+                    }
+                    file = null;
+                }
+                return;
+            }
+        }
+    }
+    
+    private void fail(IOException e)
+    {
+        logger.error("Error writing data file", e);
+        synchronized (lock)
+        {
+            failure = e;
+        }
+    }
+    
+    /**
+     * Force and close the current file, if any, and start the next one.
+     */
+    private void openNext() throws IOException
+    {
+        if (file != null)
+        {
+            FileOutputStream old = file;
+            file = null;
+            try
+            {
+                old.getChannel().force(false);
+            }
+            finally
+            {
+                old.close();
+            }
+        }
+        
+        File path = new File(directory, prefix + "-" + dateFormat.format(new Date()) + "-" + (sequence++) + ".csv");
+        file = new FileOutputStream(path);
+        logger.debug("Writing data to " + path);
+    }
+    
+    private int agentIndex(String name)
+    {
+        for (int i = 0; i < agentCount; ++i)
+        {
+            if (agents[i] == name || agents[i].equals(name))
+                return i;
+        }
+        if (agentCount == agents.length)
+        {
+            int size = agentCount * 2;
+            String[] grownAgents = new String[size];
+            String[] grownSettings = new String[size];
+            boolean[] grownInSegment = new boolean[size];
+            System.arraycopy(agents, 0, grownAgents, 0, agentCount);
+            System.arraycopy(settings, 0, grownSettings, 0, agentCount);
+            System.arraycopy(inSegment, 0, grownInSegment, 0, agentCount);
+            agents = grownAgents;
+            settings = grownSettings;
+            inSegment = grownInSegment;
+        }
+        agents[agentCount] = name;
+        return agentCount++;
+    }
+}
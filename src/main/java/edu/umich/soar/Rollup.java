@@ -0,0 +1,186 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Aggregates the rows of all agents for one collection period into rollup
+ * rows: the sum, mean, minimum and maximum of each column, and the skew, the
+ * largest value divided by the median. Each row is added as its agent is
+ * collected, the rollup rows are written once every agent has been.
+ * 
+ * <p>
+ * Rollup rows use the same columns as the agent rows, with the statistic in
+ * the agent column ("*sum", "*mean", "*min", "*max", "*skew"). Every rollup
+ * row has the latest wall clock and dc num of the period in those columns so
+ * rows stay in order for readers indexing by them.
+ * 
+ * <p>
+ * Only touched from the thread calling collect.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class Rollup
+{
+    static final String SUM = "*sum";
+    static final String MEAN = "*mean";
+    static final String MIN = "*min";
+    static final String MAX = "*max";
+    static final String SKEW = "*skew";
+    
+    final ColumnLayout layout;
+    private final Sample sum;
+    private final Sample mean;
+    private final Sample min;
+    private final Sample max;
+    private final Sample skew;
+    
+    private AgentState[] agents = new AgentState[4];
+    private double[][] values = new double[4][];    // by agent, then column
+    private double[] scratch = new double[4];
+    private int agentCount;
+    
+    Rollup(ColumnLayout layout)
+    {
+        this.layout = layout;
+        ColumnLayout doubles = layout.toDoubles();
+        this.sum = createSample(doubles, SUM);
+        this.mean = createSample(doubles, MEAN);
+        this.min = createSample(doubles, MIN);
+        this.max = createSample(doubles, MAX);
+        this.skew = createSample(doubles, SKEW);
+    }
+    
+    private static Sample createSample(ColumnLayout layout, String agent)
+    {
+        Sample sample = new Sample(layout);
+        sample.agent = agent;
+        return sample;
+    }
+    
+    int size()
+    {
+        return agentCount;
+    }
+    
+    boolean contains(AgentState state)
+    {
+        for (int i = 0; i < agentCount; ++i)
+        {
+            if (agents[i] == state)
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Add an agent's row for this period.
+     */
+    void add(AgentState state, Sample sample)
+    {
+        if (agentCount == agents.length)
+        {
+            agents = Arrays.copyOf(agents, agentCount * 2);
+            values = Arrays.copyOf(values, agentCount * 2);
+            scratch = new double[agentCount * 2];
+        }
+        double[] row = values[agentCount];
+        if (row == null)
+        {
+            row = new double[layout.count];
+            values[agentCount] = row;
+        }
+        agents[agentCount++] = state;
+        
+        final boolean[] doubles = layout.doubles;
+        for (int i = 0; i < doubles.length; ++i)
+        {
+            double value = doubles[i] ? sample.doubles[i] : sample.longs[i];
+            row[i] = value;
+            if (agentCount == 1)
+            {
+                sum.doubles[i] = value;
+                min.doubles[i] = value;
+                max.doubles[i] = value;
+            }
+            else
+            {
+                sum.doubles[i] += value;
+                if (value < min.doubles[i])
+                    min.doubles[i] = value;
+                if (value > max.doubles[i])
+                    max.doubles[i] = value;
+            }
+        }
+    }
+    
+    /**
+     * Write the rollup rows for the agents added so far and start a new
+     * period.
+     */
+    void write(SampleSink sink) throws IOException
+    {
+        if (agentCount == 0)
+            return;
+        
+        for (int i = 0; i < layout.count; ++i)
+        {
+            mean.doubles[i] = sum.doubles[i] / agentCount;
+            
+            for (int a = 0; a < agentCount; ++a)
+            {
+                scratch[a] = values[a][i];
+            }
+            Arrays.sort(scratch, 0, agentCount);
+            double median = (agentCount % 2 == 1) ? scratch[agentCount / 2]
+                    : (scratch[agentCount / 2 - 1] + scratch[agentCount / 2]) / 2;
+            skew.doubles[i] = median != 0 ? max.doubles[i] / median : 0;
+        }
+        
+        writeRow(sink, sum);
+        writeRow(sink, mean);
+        writeRow(sink, min);
+        writeRow(sink, max);
+        writeRow(sink, skew);
+        clear();
+    }
+    
+    private void writeRow(SampleSink sink, Sample sample) throws IOException
+    {
+        sample.doubles[ColumnLayout.WALL_CLOCK] = max.doubles[ColumnLayout.WALL_CLOCK];
+        sample.longs[ColumnLayout.DC_NUM] = (long) max.doubles[ColumnLayout.DC_NUM];
+        sink.write(sample);
+    }
+    
+    void clear()
+    {
+        for (int i = 0; i < agentCount; ++i)
+        {
+            agents[i] = null;
+        }
+        agentCount = 0;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * <p>
+ * One row of collected data held as primitive values so that it can be
+ * filled on the agent thread without boxing and handed to a SampleSink for
+ * formatting. Column indexes and types are defined by the sample's
+ * ColumnLayout, each column uses either the longs or the doubles array
+ * depending on its type.
+ * 
+ * <p>
+ * Samples are preallocated and reused, sinks must not hold on to them after
+ * write returns.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class Sample
+{
+    ColumnLayout layout;        // same column count for every sample of a sink
+    String agent;
+    
+    /**
+     * Agent settings string, only set on the first row for an agent.
+     */
+    String settings;
+    
+    final long[] longs;
+    final double[] doubles;
+    
+    Sample(ColumnLayout layout)
+    {
+        this.layout = layout;
+        this.longs = new long[layout.count];
+        this.doubles = new double[layout.count];
+    }
+    
+    void copyFrom(Sample other)
+    {
+        layout = other.layout;
+        agent = other.agent;
+        settings = other.settings;
+        System.arraycopy(other.longs, 0, longs, 0, longs.length);
+        System.arraycopy(other.doubles, 0, doubles, 0, doubles.length);
+    }
+}
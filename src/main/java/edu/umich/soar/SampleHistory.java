@@ -0,0 +1,164 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * The last rows collected for one agent, kept in memory for in-process
+ * readers. Rows are stored in a preallocated ring of raw 8 byte values, one
+ * per column, the same way BinarySampleSink lays them out.
+ * 
+ * <p>
+ * The agent thread adds rows in collect without locking or allocating.
+ * Readers on any thread never block it: each slot carries a stamp with the
+ * sequence number of the row in it, cleared while the row is being written,
+ * and a reader only keeps a row whose stamp was the same before and after
+ * copying it. Rows overwritten while being read are skipped. The values and
+ * stamps are written with ordered stores and read with volatile loads so the
+ * check is sound under the memory model.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+final class SampleHistory
+{
+    final String agent;
+    final ColumnLayout layout;
+    final int capacity;
+    
+    private final AtomicLongArray values;
+    private final AtomicLongArray stamps;
+    private volatile long written;  // rows added so far
+    
+    SampleHistory(String agent, ColumnLayout layout, int capacity)
+    {
+        this.agent = agent;
+        this.layout = layout;
+        this.capacity = capacity;
+        this.values = new AtomicLongArray(capacity * layout.count);
+        this.stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i)
+        {
+            stamps.set(i, -1);
+        }
+    }
+    
+    /**
+     * Only called from the thread collecting the agent.
+     */
+    void add(Sample sample)
+    {
+        final long seq = written;
+        final int slot = (int) (seq % capacity);
+        final int base = slot * layout.count;
+        final boolean[] doubles = layout.doubles;
+        
+        stamps.lazySet(slot, -1);
+        for (int i = 0; i < doubles.length; ++i)
+        {
+            values.lazySet(base + i, doubles[i] ? Double.doubleToRawLongBits(sample.doubles[i]) : sample.longs[i]);
+        }
+        stamps.lazySet(slot, seq);
+        written = seq + 1;
+    }
+    
+    /**
+     * @return The newest row, or null if there is none.
+     */
+    SampleRow latest()
+    {
+        // retry if the writer laps us, rare unless the ring is tiny
+        for (int attempt = 0; attempt < 3; ++attempt)
+        {
+            long w = written;
+            if (w == 0)
+                return null;
+            SampleRow row = read(w - 1);
+            if (row != null)
+                return row;
+        }
+        return null;
+    }
+    
+    /**
+     * @return Up to the last count rows, oldest first. Empty if count is not
+     *         positive.
+     */
+    List<SampleRow> recent(int count)
+    {
+        final long w = written;
+        final long first = Math.max(0, w - Math.min(Math.max(0, count), capacity));
+        List<SampleRow> rows = new ArrayList<SampleRow>((int) (w - first));
+        for (long seq = first; seq < w; ++seq)
+        {
+            SampleRow row = read(seq);
+            if (row != null)
+                rows.add(row);
+        }
+        return rows;
+    }
+    
+    /**
+     * @return Rows still in the ring with a dc num after the given one,
+     *         oldest first.
+     */
+    List<SampleRow> since(long dc)
+    {
+        final long w = written;
+        final long first = Math.max(0, w - capacity);
+        List<SampleRow> rows = new ArrayList<SampleRow>();
+        for (long seq = w - 1; seq >= first; --seq)
+        {
+            SampleRow row = read(seq);
+            if (row == null)
+                break; // overwritten, everything older is gone too
+            if (row.getDecisionCycle() <= dc)
+                break;
+            rows.add(row);
+        }
+        Collections.reverse(rows);
+        return rows;
+    }
+    
+    private SampleRow read(long seq)
+    {
+        final int slot = (int) (seq % capacity);
+        if (stamps.get(slot) != seq)
+            return null;
+        
+        final int base = slot * layout.count;
+        long[] raw = new long[layout.count];
+        for (int i = 0; i < raw.length; ++i)
+        {
+            raw[i] = values.get(base + i);
+        }
+        
+        if (stamps.get(slot) != seq)
+            return null;
+        return new SampleRow(agent, layout, raw);
+    }
+}
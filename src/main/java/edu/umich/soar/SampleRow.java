@@ -0,0 +1,140 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * A copy of one collected row, returned by the DataCollector history methods.
+ * Values are looked up by column header, see Metrics for the built in names.
+ * The fixed "wall clock" and "dc num" columns also have their own getters.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public final class SampleRow
+{
+    private final String agent;
+    private final ColumnLayout layout;
+    private final long[] raw;
+    
+    SampleRow(String agent, ColumnLayout layout, long[] raw)
+    {
+        this.agent = agent;
+        this.layout = layout;
+        this.raw = raw;
+    }
+    
+    /**
+     * @return Name of the agent the row was collected from.
+     */
+    public String getAgent()
+    {
+        return agent;
+    }
+    
+    /**
+     * @return The dc num column.
+     */
+    public long getDecisionCycle()
+    {
+        return raw[ColumnLayout.DC_NUM];
+    }
+    
+    /**
+     * @return The wall clock column in seconds.
+     */
+    public double getWallClock()
+    {
+        return Double.longBitsToDouble(raw[ColumnLayout.WALL_CLOCK]);
+    }
+    
+    /**
+     * @return The headers of the value columns in this row, in order.
+     */
+    public List<String> getColumnNames()
+    {
+        return Collections.unmodifiableList(Arrays.asList(layout.names));
+    }
+    
+    /**
+     * @param column
+     *            Column header.
+     * @return true if the row has the column.
+     */
+    public boolean hasColumn(String column)
+    {
+        return layout.indexOf(column) >= 0;
+    }
+    
+    /**
+     * @param column
+     *            Column header.
+     * @return The column's value, long columns are converted.
+     * @throws IllegalArgumentException
+     *             If there is no such column.
+     */
+    public double getValue(String column)
+    {
+        int index = getIndex(column);
+        return layout.doubles[index] ? Double.longBitsToDouble(raw[index]) : raw[index];
+    }
+    
+    /**
+     * @param column
+     *            Column header.
+     * @return The column's value, double columns are truncated.
+     * @throws IllegalArgumentException
+     *             If there is no such column.
+     */
+    public long getLong(String column)
+    {
+        int index = getIndex(column);
+        return layout.doubles[index] ? (long) Double.longBitsToDouble(raw[index]) : raw[index];
+    }
+    
+    private int getIndex(String column)
+    {
+        int index = layout.indexOf(column);
+        if (index < 0)
+            throw new IllegalArgumentException("No such column: " + column);
+        return index;
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(agent);
+        for (int i = 0; i < layout.count; ++i)
+        {
+            sb.append(", ").append(layout.names[i]).append("=");
+            if (layout.doubles[i])
+                sb.append(Double.longBitsToDouble(raw[i]));
+            else
+                sb.append(raw[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,271 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.jsoar.kernel.SoarException;
+import org.jsoar.runtime.CompletionHandler;
+import org.jsoar.runtime.ThreadedAgent;
+
+/**
+ * <p>
+ * Runs several agents concurrently on a bundled workload, without the
+ * collector and with it, and reports decisions per second for each.
+ * 
+ * <p>
+ * Usage:
+ * <code>SoakHarness [-agents n] [-decisions n] [-period n] [-repeat n] [-out file] [workload]</code>
+ * 
+ * <p>
+ * Defaults are 4 agents, 100000 decisions each, collecting every 5000 cycles
+ * into a stream that discards the data, 3 repeats and the WM_CHURN workload.
+ * Each agent runs on its own ThreadedAgent thread and is collected through a
+ * CollectorService.
+ * 
+ * <p>
+ * One discarded run of each kind warms up the JIT first. The measured runs
+ * then alternate which kind goes first in each repeat, and the medians are
+ * reported, so neither kind always runs on a colder or hotter JVM.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class SoakHarness
+{
+    private static final OutputStream DISCARD = new OutputStream()
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    };
+    
+    private final Workload workload;
+    private final int agentCount;
+    private final long decisions;
+    private final int period;
+    private final List<ThreadedAgent> agents = new ArrayList<ThreadedAgent>();
+    
+    public SoakHarness(Workload workload, int agentCount, long decisions, int period)
+    {
+        this.workload = workload;
+        this.agentCount = agentCount;
+        this.decisions = decisions;
+        this.period = period;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        int agentCount = 4;
+        long decisions = 100000;
+        int period = 5000;
+        int repeat = 3;
+        String out = null;
+        Workload workload = Workload.WM_CHURN;
+        
+        try
+        {
+            for (int i = 0; i < args.length; ++i)
+            {
+                if (args[i].equals("-agents"))
+                    agentCount = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-decisions"))
+                    decisions = Long.parseLong(args[++i]);
+                else if (args[i].equals("-period"))
+                    period = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-repeat"))
+                    repeat = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-out"))
+                    out = args[++i];
+                else
+                    workload = Workload.valueOf(args[i].toUpperCase().replace('-', '_'));
+            }
+            if (repeat < 1)
+                throw new IllegalArgumentException();
+        }
+        catch (RuntimeException e)
+        {
+            System.err.println("Usage: SoakHarness [-agents n] [-decisions n] [-period n] [-repeat n] [-out file] [workload]");
+            System.exit(2);
+        }
+        
+        SoakHarness harness = new SoakHarness(workload, agentCount, decisions, period);
+        harness.start();
+        try
+        {
+            DataCollector warmup = new DataCollector();
+            warmup.setOutputStream(DISCARD);
+            harness.run(null);
+            harness.run(warmup);
+            warmup.dispose();
+            
+            OutputStream stream = out != null ? new FileOutputStream(out) : DISCARD;
+            DataCollector collector = new DataCollector();
+            collector.setOutputStream(stream);
+            double[] without = new double[repeat];
+            double[] with = new double[repeat];
+            for (int i = 0; i < repeat; ++i)
+            {
+                if (i % 2 == 0)
+                {
+                    without[i] = harness.run(null);
+                    with[i] = harness.run(collector);
+                }
+                else
+                {
+                    with[i] = harness.run(collector);
+                    without[i] = harness.run(null);
+                }
+            }
+            collector.dispose();
+            if (out != null)
+                stream.close();
+            
+            double withoutMedian = median(without);
+            double withMedian = median(with);
+            System.out.printf("%s, %d agents, %d decisions each, median of %d%n", workload, agentCount,
+                    decisions, repeat);
+            System.out.printf("without collector: %.0f decisions/sec%n", withoutMedian);
+            System.out.printf("with collector:    %.0f decisions/sec (%.2f%% overhead)%n", withMedian,
+                    100.0 * (withoutMedian - withMedian) / withoutMedian);
+        }
+        finally
+        {
+            harness.dispose();
+        }
+    }
+    
+    private static double median(double[] values)
+    {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+    
+    /**
+     * Create the agents and load the workload.
+     */
+    public void start() throws SoarException
+    {
+        for (int i = 0; i < agentCount; ++i)
+        {
+            ThreadedAgent threaded = ThreadedAgent.create();
+            threaded.setName("soak-" + i);
+            workload.source(threaded.getInterpreter());
+            agents.add(threaded);
+        }
+    }
+    
+    /**
+     * Reinitialize the agents and run them all concurrently for the
+     * configured number of decisions.
+     * 
+     * @param collector
+     *            Collector to attach, or null to run without collecting.
+     * @return Total decisions per second over all agents.
+     */
+    public double run(DataCollector collector) throws InterruptedException
+    {
+        for (ThreadedAgent threaded : agents)
+        {
+            threaded.initialize();
+        }
+        
+        // the service serializes the collector calls from the agent threads
+        CollectorService service = null;
+        if (collector != null)
+        {
+            service = new CollectorService(collector, period);
+            for (ThreadedAgent threaded : agents)
+            {
+                service.attach(threaded);
+            }
+        }
+        
+        long start = System.nanoTime();
+        runAll(true);
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        
+        if (service != null)
+        {
+            service.dispose();
+            // detach collects the last rows on the agent threads, wait for them
+            runAll(false);
+        }
+        return decisions * agents.size() / seconds;
+    }
+    
+    /**
+     * Run the workload, or only a no-op, on every agent's thread and wait for
+     * all of them to finish.
+     */
+    private void runAll(final boolean runWorkload) throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch(agents.size());
+        for (ThreadedAgent threaded : agents)
+        {
+            final Agent agent = threaded.getAgent();
+            threaded.execute(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    if (runWorkload)
+                        agent.runFor(decisions, RunType.DECISIONS);
+                    return null;
+                }
+            }, new CompletionHandler<Void>()
+            {
+                @Override
+                public void finish(Void result)
+                {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+    }
+    
+    public void dispose()
+    {
+        for (ThreadedAgent threaded : agents)
+        {
+            threaded.dispose();
+        }
+        agents.clear();
+    }
+}
@@ -0,0 +1,89 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.net.URL;
+
+import org.jsoar.kernel.SoarException;
+import org.jsoar.util.commands.SoarCommandInterpreter;
+import org.jsoar.util.commands.SoarCommands;
+
+/**
+ * <p>
+ * Soar agents bundled with the collector for exercising it without network
+ * access or an application. Each one stresses a different part of the kernel
+ * and runs forever.
+ * 
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public enum Workload
+{
+    /**
+     * Replaces a batch of 40 wmes every decision.
+     */
+    WM_CHURN("wm-churn.soar"),
+    
+    /**
+     * Retracts and refires 128 elaborations every decision.
+     */
+    MANY_FIRINGS("many-firings.soar"),
+    
+    /**
+     * Alternates semantic memory stores and queries.
+     */
+    SMEM_HEAVY("smem-heavy.soar"),
+    
+    /**
+     * Repeatedly builds and collapses a 12 deep stack of substates.
+     */
+    DEEP_SUBSTATES("deep-substates.soar"),
+    ;
+    
+    private final String file;
+    
+    private Workload(String file)
+    {
+        this.file = file;
+    }
+    
+    /**
+     * @return The location of the workload's source file on the class path.
+     */
+    public URL getResource()
+    {
+        return Workload.class.getResource("workloads/" + file);
+    }
+    
+    /**
+     * Load the workload's productions into an agent.
+     * 
+     * @param interp
+     *            The agent's interpreter.
+     * @throws SoarException
+     *             If the source fails.
+     */
+    public void source(SoarCommandInterpreter interp) throws SoarException
+    {
+        SoarCommands.source(interp, getResource());
+    }
+}
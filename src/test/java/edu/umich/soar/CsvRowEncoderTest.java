@@ -0,0 +1,130 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.jsoar.kernel.Agent;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class CsvRowEncoderTest
+{
+    private static final int WARMUP_ROWS = 100000;
+    private static final int ROWS = 100000;
+    
+    private static Metric metric(String name, boolean floatingPoint)
+    {
+        return new Metric(name, floatingPoint) {
+            @Override
+            protected Sampler createSampler(Agent agent)
+            {
+                return new Sampler() {
+                };
+            }
+        };
+    }
+    
+    private static Sample createSample()
+    {
+        ColumnLayout layout = new ColumnLayout(Arrays.asList(metric("a", false), metric("b", true),
+                metric("c", false), metric("d", true)));
+        Sample sample = new Sample(layout);
+        sample.agent = "agent-0";
+        sample.settings = "learning off";
+        return sample;
+    }
+    
+    private static void fill(Sample sample, int row)
+    {
+        for (int i = 0; i < sample.longs.length; ++i)
+        {
+            sample.longs[i] = row * 31L + i;
+            sample.doubles[i] = row / 7.0 + i;
+        }
+    }
+    
+    private static long encodeRows(CsvRowEncoder encoder, Sample sample, int rows)
+    {
+        long total = 0;
+        for (int row = 0; row < rows; ++row)
+        {
+            fill(sample, row);
+            total += encoder.encode(sample).length();
+        }
+        return total;
+    }
+    
+    @Test
+    public void testEncode()
+    {
+        Sample sample = createSample();
+        sample.longs[ColumnLayout.DC_NUM] = 42;
+        sample.doubles[ColumnLayout.WALL_CLOCK] = 1.5;
+        sample.longs[ColumnLayout.FIRST_METRIC] = -7;
+        sample.doubles[ColumnLayout.FIRST_METRIC + 1] = 0.25;
+        sample.longs[ColumnLayout.FIRST_METRIC + 2] = 0;
+        sample.doubles[ColumnLayout.FIRST_METRIC + 3] = -3.0000005;
+        
+        CsvRowEncoder encoder = new CsvRowEncoder().encode(sample);
+        String row = new String(encoder.buffer(), 0, encoder.length());
+        assertEquals("agent-0,1.500000,42,-7,0.250000,0,-3.000001,learning off"
+                + System.getProperty("line.separator", "\n"), row);
+    }
+    
+    @Test
+    public void testEncodeDoesNotAllocate()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocation.isThreadAllocatedMemorySupported());
+        allocation.setThreadAllocatedMemoryEnabled(true);
+        
+        final long thread = Thread.currentThread().getId();
+        CsvRowEncoder encoder = new CsvRowEncoder();
+        Sample sample = createSample();
+        
+        // grow the buffer and let the JIT compile the loop
+        encodeRows(encoder, sample, WARMUP_ROWS);
+        
+        // the measurement itself may allocate, subtract what it costs alone
+        long before = allocation.getThreadAllocatedBytes(thread);
+        long overhead = allocation.getThreadAllocatedBytes(thread) - before;
+        
+        before = allocation.getThreadAllocatedBytes(thread);
+        long bytes = encodeRows(encoder, sample, ROWS);
+        long allocated = allocation.getThreadAllocatedBytes(thread) - before - overhead;
+        
+        assertTrue(bytes > 0);
+        assertEquals("bytes allocated encoding " + ROWS + " rows", 0, allocated);
+    }
+}
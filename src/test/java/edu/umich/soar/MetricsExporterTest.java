@@ -0,0 +1,127 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.jsoar.kernel.Agent;
+import org.jsoar.kernel.RunType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class MetricsExporterTest
+{
+    private Agent agent;
+    private DataCollector collector;
+    private MetricsExporter exporter;
+    
+    private static Metric constant(String name, final double value)
+    {
+        return new Metric(name, true) {
+            @Override
+            protected Sampler createSampler(Agent agent)
+            {
+                return new Sampler() {
+                    @Override
+                    public double sampleDouble(long deltaDc)
+                    {
+                        return value;
+                    }
+                };
+            }
+        };
+    }
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        agent = new Agent();
+        agent.setName("soar");
+        agent.initialize();
+        agent.runFor(1, RunType.DECISIONS);
+        
+        collector = new DataCollector();
+        collector.setMetrics(Arrays.asList(constant("positive", Double.POSITIVE_INFINITY),
+                constant("negative", Double.NEGATIVE_INFINITY), constant("not a number", Double.NaN),
+                constant("finite", 1.5)));
+        exporter = new MetricsExporter(collector, "test");
+        collector.collect(agent);
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        exporter.close();
+        collector.dispose();
+        agent.dispose();
+    }
+    
+    private static String fetch(URL url) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try
+        {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain"));
+            InputStream in = connection.getInputStream();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+            {
+                body.write(buf, 0, n);
+            }
+            in.close();
+            return body.toString("UTF-8");
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+    
+    @Test
+    public void testPrometheusOverHttp() throws Exception
+    {
+        int port = exporter.startHttpServer(0);
+        String body = fetch(new URL("http://127.0.0.1:" + port + "/metrics"));
+        
+        assertTrue(body, body.contains("# TYPE jsoar_dc_num gauge\njsoar_dc_num{agent=\"soar\"} "));
+        assertTrue(body, body.contains("# TYPE jsoar_finite gauge\njsoar_finite{agent=\"soar\"} 1.5\n"));
+        assertTrue(body, body.contains("jsoar_positive{agent=\"soar\"} +Inf\n"));
+        assertTrue(body, body.contains("jsoar_negative{agent=\"soar\"} -Inf\n"));
+        assertTrue(body, body.contains("jsoar_not_a_number{agent=\"soar\"} NaN\n"));
+        assertTrue(body, !body.contains("Infinity"));
+    }
+}
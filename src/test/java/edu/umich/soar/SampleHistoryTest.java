@@ -0,0 +1,75 @@
+package edu.umich.soar;
+/*
+ * Copyright (c) 2011, Regents of the University of Michigan
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Jonathan Voigt <voigtjr@gmail.com>
+ */
+public class SampleHistoryTest
+{
+    private static SampleHistory createHistory(int capacity, int rows)
+    {
+        ColumnLayout layout = new ColumnLayout(Collections.<Metric>emptyList());
+        SampleHistory history = new SampleHistory("agent-0", layout, capacity);
+        Sample sample = new Sample(layout);
+        sample.agent = "agent-0";
+        for (int dc = 1; dc <= rows; ++dc)
+        {
+            sample.longs[ColumnLayout.DC_NUM] = dc;
+            history.add(sample);
+        }
+        return history;
+    }
+    
+    @Test
+    public void testRecent()
+    {
+        SampleHistory history = createHistory(4, 6);
+        List<SampleRow> rows = history.recent(2);
+        assertEquals(2, rows.size());
+        assertEquals(5, rows.get(0).getDecisionCycle());
+        assertEquals(6, rows.get(1).getDecisionCycle());
+        
+        // only the ring's capacity is kept
+        rows = history.recent(10);
+        assertEquals(4, rows.size());
+        assertEquals(3, rows.get(0).getDecisionCycle());
+    }
+    
+    @Test
+    public void testRecentNotPositive()
+    {
+        SampleHistory history = createHistory(4, 6);
+        assertTrue(history.recent(0).isEmpty());
+        assertTrue(history.recent(-1).isEmpty());
+        assertTrue(history.recent(Integer.MIN_VALUE).isEmpty());
+    }
+}